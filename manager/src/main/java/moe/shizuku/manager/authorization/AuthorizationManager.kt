@@ -2,11 +2,15 @@ package moe.shizuku.manager.authorization
 
 import android.content.pm.PackageInfo
 import android.content.pm.PackageManager
+import android.os.IBinder
+import android.os.Parcel
 import android.os.Process
 import moe.shizuku.manager.Manifest
 import moe.shizuku.manager.utils.ShizukuSystemApis
 import rikka.shizuku.Shizuku
+import rikka.shizuku.ShizukuApiConstants
 import java.util.*
+import java.util.concurrent.atomic.AtomicInteger
 
 object AuthorizationManager {
 
@@ -14,6 +18,21 @@ object AuthorizationManager {
     private const val FLAG_DENIED = 1 shl 2
     private const val MASK_PERMISSION = FLAG_ALLOWED or FLAG_DENIED
 
+    // same as ServerConstants in the server, an older server does not handle them
+    private const val BINDER_TRANSACTION_getFlagsForUids = IBinder.LAST_CALL_TRANSACTION - 3
+    private const val BINDER_TRANSACTION_updateFlagsForUids = IBinder.LAST_CALL_TRANSACTION - 4
+
+    private val changes = AtomicInteger()
+
+    /**
+     * Increased every time flags are changed outside the app list, lists loaded with an older value are stale.
+     */
+    val changeCount: Int get() = changes.get()
+
+    fun notifyChanged() {
+        changes.incrementAndGet()
+    }
+
     fun getPackages(pmFlags: Int): List<PackageInfo> {
         val packages: MutableList<PackageInfo> = ArrayList()
         for (pi in ShizukuSystemApis.getInstalledPackages(pmFlags or PackageManager.GET_PERMISSIONS, Process.myUid() / 100000)) {
@@ -28,6 +47,56 @@ object AuthorizationManager {
         return packages
     }
 
+    private fun getFlagsForUids(uids: IntArray): IntArray? {
+        val data = Parcel.obtain()
+        val reply = Parcel.obtain()
+        try {
+            data.writeInterfaceToken(ShizukuApiConstants.BINDER_DESCRIPTOR)
+            data.writeIntArray(uids)
+            data.writeInt(MASK_PERMISSION)
+            if (!Shizuku.getBinder()!!.transact(BINDER_TRANSACTION_getFlagsForUids, data, reply, 0)) {
+                return null
+            }
+            reply.readException()
+            return reply.createIntArray()
+        } finally {
+            data.recycle()
+            reply.recycle()
+        }
+    }
+
+    private fun updateFlagsForUids(uids: IntArray, value: Int): Boolean {
+        val data = Parcel.obtain()
+        val reply = Parcel.obtain()
+        try {
+            data.writeInterfaceToken(ShizukuApiConstants.BINDER_DESCRIPTOR)
+            data.writeIntArray(uids)
+            data.writeInt(MASK_PERMISSION)
+            data.writeInt(value)
+            if (!Shizuku.getBinder()!!.transact(BINDER_TRANSACTION_updateFlagsForUids, data, reply, 0)) {
+                return false
+            }
+            reply.readException()
+            return true
+        } finally {
+            data.recycle()
+            reply.recycle()
+        }
+    }
+
+    /**
+     * Loads whether each package is granted with one binder call.
+     */
+    fun loadGranted(packages: List<PackageInfo>): BooleanArray {
+        if (Shizuku.isPreV11()) {
+            return BooleanArray(packages.size) { granted(packages[it].packageName, packages[it].applicationInfo.uid) }
+        }
+
+        val uids = IntArray(packages.size) { packages[it].applicationInfo.uid }
+        val flags = getFlagsForUids(uids) ?: IntArray(uids.size) { Shizuku.getFlagsForUid(uids[it], MASK_PERMISSION) }
+        return BooleanArray(uids.size) { (flags[it] and FLAG_ALLOWED) == FLAG_ALLOWED }
+    }
+
     fun granted(packageName: String, uid: Int): Boolean {
         return if (Shizuku.isPreV11()) {
             ShizukuSystemApis.checkPermission(Manifest.permission.API_V23, packageName, uid / 100000) == PackageManager.PERMISSION_GRANTED
@@ -51,4 +120,24 @@ object AuthorizationManager {
             Shizuku.updateFlagsForUid(uid, MASK_PERMISSION, 0)
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Grants or revokes all packages, with one binder call when the server supports it.
+     */
+    fun setGranted(packages: List<Pair<String, Int>>, granted: Boolean) {
+        if (Shizuku.isPreV11()) {
+            for ((packageName, uid) in packages) {
+                if (granted) grant(packageName, uid) else revoke(packageName, uid)
+            }
+            return
+        }
+
+        val value = if (granted) FLAG_ALLOWED else 0
+        val uids = IntArray(packages.size) { packages[it].second }
+        if (!updateFlagsForUids(uids, value)) {
+            for (uid in uids) {
+                Shizuku.updateFlagsForUid(uid, MASK_PERMISSION, value)
+            }
+        }
+    }
+}
@@ -29,6 +29,7 @@ class RequestPermissionActivity : AppActivity() {
         data.putBoolean(REQUEST_PERMISSION_REPLY_IS_ONETIME, onetime)
         try {
             Shizuku.dispatchPermissionConfirmationResult(requestUid, requestPid, requestCode, data)
+            AuthorizationManager.notifyChanged()
         } catch (e: Throwable) {
             LOGGER.e("dispatchPermissionConfirmationResult")
         }
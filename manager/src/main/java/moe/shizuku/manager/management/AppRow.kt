@@ -0,0 +1,31 @@
+package moe.shizuku.manager.management
+
+import android.content.pm.ApplicationInfo
+
+/**
+ * What a row of the app list shows, resolved on a background thread so that binding does no I/O or IPC.
+ */
+class AppRow(
+        val info: ApplicationInfo,
+        val label: String,
+        val granted: Boolean,
+        val requiresRoot: Boolean,
+        val lastUpdateTime: Long) {
+
+    val packageName: String get() = info.packageName
+
+    val uid: Int get() = info.uid
+
+    fun withGranted(granted: Boolean) = AppRow(info, label, granted, requiresRoot, lastUpdateTime)
+
+    fun isSameApp(other: AppRow) = packageName == other.packageName && uid == other.uid
+
+    fun hasSameContents(other: AppRow) = label == other.label && granted == other.granted
+            && requiresRoot == other.requiresRoot && lastUpdateTime == other.lastUpdateTime
+
+    /**
+     * @return true if only the granted state differs, the row can be rebound without reloading its icon
+     */
+    fun differsOnlyInGranted(other: AppRow) = granted != other.granted && label == other.label
+            && requiresRoot == other.requiresRoot && lastUpdateTime == other.lastUpdateTime
+}
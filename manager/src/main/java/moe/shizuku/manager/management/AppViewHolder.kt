@@ -1,6 +1,5 @@
 package moe.shizuku.manager.management
 
-import android.content.pm.PackageInfo
 import android.text.method.LinkMovementMethod
 import android.view.LayoutInflater
 import android.view.View
@@ -19,11 +18,11 @@ import rikka.recyclerview.BaseViewHolder
 import rikka.recyclerview.BaseViewHolder.Creator
 import rikka.shizuku.Shizuku
 
-class AppViewHolder(private val binding: AppListItemBinding) : BaseViewHolder<PackageInfo>(binding.root), View.OnClickListener {
+class AppViewHolder(private val binding: AppListItemBinding) : BaseViewHolder<AppRow>(binding.root), View.OnClickListener {
 
     companion object {
         @JvmField
-        val CREATOR = Creator<PackageInfo> { inflater: LayoutInflater, parent: ViewGroup? -> AppViewHolder(AppListItemBinding.inflate(inflater, parent, false)) }
+        val CREATOR = Creator<AppRow> { inflater: LayoutInflater, parent: ViewGroup? -> AppViewHolder(AppListItemBinding.inflate(inflater, parent, false)) }
     }
 
 
@@ -39,20 +38,24 @@ class AppViewHolder(private val binding: AppListItemBinding) : BaseViewHolder<Pa
     }
 
     private inline val packageName get() = data.packageName
-    private inline val ai get() = data.applicationInfo
-    private inline val uid get() = ai.uid
+    private inline val ai get() = data.info
+    private inline val uid get() = data.uid
 
     private var loadIconJob: Job? = null
 
     override fun onClick(v: View) {
         val context = v.context
+        val granted = !data.granted
         try {
-            if (AuthorizationManager.granted(packageName, uid)) {
-                AuthorizationManager.revoke(packageName, uid)
-            } else {
+            if (granted) {
                 AuthorizationManager.grant(packageName, uid)
+            } else {
+                AuthorizationManager.revoke(packageName, uid)
             }
+            (adapter as AppsAdapter).listener.onGrantedChanged(data, granted)
         } catch (e: SecurityException) {
+            switchWidget.isChecked = data.granted
+
             val uid = try {
                 Shizuku.getUid()
             } catch (ex: Throwable) {
@@ -73,22 +76,19 @@ class AppViewHolder(private val binding: AppListItemBinding) : BaseViewHolder<Pa
                 }
             }
         }
-        adapter.notifyItemChanged(adapterPosition, Any())
     }
 
     override fun onBind() {
-        val pm = itemView.context.packageManager
-        icon.setImageDrawable(ai.loadIcon(pm))
-        name.text = ai.loadLabel(pm)
-        pkg.text = ai.packageName
-        switchWidget.isChecked = AuthorizationManager.granted(packageName, uid)
-        root.visibility = if (ai.metaData != null && ai.metaData.getBoolean("moe.shizuku.client.V3_REQUIRES_ROOT")) View.VISIBLE else View.GONE
+        name.text = data.label
+        pkg.text = packageName
+        switchWidget.isChecked = data.granted
+        root.visibility = if (data.requiresRoot) View.VISIBLE else View.GONE
 
-        loadIconJob = AppIconCache.loadIconBitmapAsync(context, ai, ai.uid / 100000, icon)
+        loadIconJob = AppIconCache.loadIconBitmapAsync(context, ai, ai.uid / 100000, data.lastUpdateTime, icon)
     }
 
     override fun onBind(payloads: List<Any>) {
-        switchWidget.isChecked = AuthorizationManager.granted(packageName, uid)
+        switchWidget.isChecked = data.granted
     }
 
     override fun onRecycle() {
@@ -4,7 +4,6 @@ import android.os.Bundle
 import android.view.Menu
 import android.view.MenuItem
 import android.widget.Toast
-import androidx.recyclerview.widget.RecyclerView.AdapterDataObserver
 import moe.shizuku.manager.Helps
 import moe.shizuku.manager.R
 import moe.shizuku.manager.app.AppBarActivity
@@ -20,7 +19,7 @@ import java.util.*
 class ApplicationManagementActivity : AppBarActivity() {
 
     private val viewModel by appsViewModel()
-    private val adapter = AppsAdapter()
+    private val adapter = AppsAdapter { row, granted -> viewModel.updateGranted(row, granted) }
 
     private val binderDeadListener = Shizuku.OnBinderDeadListener {
         if (!isFinishing) {
@@ -67,12 +66,6 @@ class ApplicationManagementActivity : AppBarActivity() {
         recyclerView.addVerticalPadding()
         recyclerView.borderViewDelegate.borderVisibilityChangedListener = BorderView.OnBorderVisibilityChangedListener { top: Boolean, _: Boolean, _: Boolean, _: Boolean -> appBar?.setRaised(!top) }
 
-        adapter.registerAdapterDataObserver(object : AdapterDataObserver() {
-            override fun onItemRangeChanged(positionStart: Int, itemCount: Int, payload: Any?) {
-                viewModel.loadCount()
-            }
-        })
-
         Shizuku.addBinderDeadListener(binderDeadListener)
     }
 
@@ -84,7 +77,9 @@ class ApplicationManagementActivity : AppBarActivity() {
 
     override fun onResume() {
         super.onResume()
-        adapter.notifyDataSetChanged()
+        if (viewModel.packages.value != null) {
+            viewModel.reloadIfChanged()
+        }
     }
 
     override fun onCreateOptionsMenu(menu: Menu): Boolean {
@@ -99,6 +94,12 @@ class ApplicationManagementActivity : AppBarActivity() {
         } else if (item.itemId == R.id.action_view_apps) {
             CustomTabsHelper.launchUrlOrCopy(this, Helps.APPS.get())
             return true
+        } else if (item.itemId == R.id.action_allow_all) {
+            viewModel.setAllGranted(true)
+            return true
+        } else if (item.itemId == R.id.action_deny_all) {
+            viewModel.setAllGranted(false)
+            return true
         }
         return super.onOptionsItemSelected(item)
     }
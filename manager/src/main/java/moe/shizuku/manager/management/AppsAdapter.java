@@ -1,24 +1,39 @@
 package moe.shizuku.manager.management;
 
-import android.content.pm.PackageInfo;
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.DiffUtil;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 
 import rikka.recyclerview.BaseRecyclerViewAdapter;
 import rikka.recyclerview.ClassCreatorPool;
 
 public class AppsAdapter extends BaseRecyclerViewAdapter<ClassCreatorPool> {
 
-    public AppsAdapter() {
+    static final Object PAYLOAD_GRANTED = new Object();
+
+    public interface OnGrantedChangedListener {
+
+        void onGrantedChanged(AppRow row, boolean granted);
+    }
+
+    private final OnGrantedChangedListener listener;
+
+    public AppsAdapter(OnGrantedChangedListener listener) {
         super();
 
-        getCreatorPool().putRule(PackageInfo.class, AppViewHolder.CREATOR);
+        this.listener = listener;
+
+        getCreatorPool().putRule(AppRow.class, AppViewHolder.CREATOR);
         setHasStableIds(true);
     }
 
     @Override
     public long getItemId(int position) {
-        return getItemAt(position).hashCode();
+        AppRow row = getItemAt(position);
+        return Objects.hash(row.getPackageName(), row.getUid());
     }
 
     @Override
@@ -26,9 +41,47 @@ public class AppsAdapter extends BaseRecyclerViewAdapter<ClassCreatorPool> {
         return new ClassCreatorPool();
     }
 
-    public void updateData(List<PackageInfo> data) {
+    public void updateData(List<AppRow> data) {
+        List<AppRow> oldData = new ArrayList<>(getItems().size());
+        for (Object item : getItems()) {
+            oldData.add((AppRow) item);
+        }
+
+        DiffUtil.DiffResult result = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+
+            @Override
+            public int getOldListSize() {
+                return oldData.size();
+            }
+
+            @Override
+            public int getNewListSize() {
+                return data.size();
+            }
+
+            @Override
+            public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+                return oldData.get(oldItemPosition).isSameApp(data.get(newItemPosition));
+            }
+
+            @Override
+            public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+                return oldData.get(oldItemPosition).hasSameContents(data.get(newItemPosition));
+            }
+
+            @Nullable
+            @Override
+            public Object getChangePayload(int oldItemPosition, int newItemPosition) {
+                return oldData.get(oldItemPosition).differsOnlyInGranted(data.get(newItemPosition)) ? PAYLOAD_GRANTED : null;
+            }
+        });
+
         getItems().clear();
         getItems().addAll(data);
-        notifyDataSetChanged();
+        result.dispatchUpdatesTo(this);
+    }
+
+    OnGrantedChangedListener getListener() {
+        return listener;
     }
 }
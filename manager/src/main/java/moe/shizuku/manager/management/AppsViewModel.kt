@@ -14,6 +14,7 @@ import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
 import moe.shizuku.manager.authorization.AuthorizationManager
+import moe.shizuku.manager.utils.AppIconCache
 import moe.shizuku.manager.viewmodel.Resource
 import moe.shizuku.manager.viewmodel.activitySharedViewModels
 import moe.shizuku.manager.viewmodel.sharedViewModels
@@ -27,27 +28,39 @@ fun Fragment.appsViewModel() = activitySharedViewModels { AppsViewModel(requireC
 
 class AppsViewModel(context: Context) : ViewModel() {
 
+    private val appContext = context.applicationContext
     private val packageName = context.packageName
+    private val pm = context.applicationContext.packageManager
 
-    private val _packages = MutableLiveData<Resource<List<PackageInfo>>>()
-    val packages = _packages as LiveData<Resource<List<PackageInfo>>>
+    private val _packages = MutableLiveData<Resource<List<AppRow>>>()
+    val packages = _packages as LiveData<Resource<List<AppRow>>>
 
     private val _grantedCount = MutableLiveData<Resource<Int>>()
     val grantedCount = _grantedCount as LiveData<Resource<Int>>
 
+    private var loadedChangeCount = 0
+
+    @MainThread
     fun load() {
+        loadedChangeCount = AuthorizationManager.changeCount
         viewModelScope.launch(Dispatchers.IO) {
             try {
                 val list: MutableList<PackageInfo> = ArrayList()
-                var count = 0
                 for (pi in AuthorizationManager.getPackages(PackageManager.GET_META_DATA)) {
                     if (packageName == pi.packageName) continue
                     if (pi?.applicationInfo?.metaData?.getBoolean("moe.shizuku.client.V3_SUPPORT") != true) continue
                     list.add(pi)
-                    if (AuthorizationManager.granted(pi.packageName, pi.applicationInfo.uid)) count++
                 }
-                _packages.postValue(Resource.success(list))
-                _grantedCount.postValue(Resource.success(count))
+                val granted = AuthorizationManager.loadGranted(list)
+                val rows = list.mapIndexed { index, pi ->
+                    val ai = pi.applicationInfo
+                    AppRow(ai, ai.loadLabel(pm).toString(), granted[index],
+                            ai.metaData.getBoolean("moe.shizuku.client.V3_REQUIRES_ROOT"), pi.lastUpdateTime)
+                }
+                _packages.postValue(Resource.success(rows))
+                _grantedCount.postValue(Resource.success(rows.count { it.granted }))
+
+                AppIconCache.trimDiskCache(appContext, rows.map { Triple(it.packageName, it.uid / 100000, it.lastUpdateTime) })
             } catch (e: CancellationException) {
 
             } catch (e: Throwable) {
@@ -57,16 +70,39 @@ class AppsViewModel(context: Context) : ViewModel() {
         }
     }
 
-    fun loadCount() {
+    /**
+     * Reloads only if flags were changed outside the app list since the last load.
+     */
+    @MainThread
+    fun reloadIfChanged() {
+        if (loadedChangeCount != AuthorizationManager.changeCount) {
+            load()
+        }
+    }
+
+    /**
+     * Updates the loaded rows and the count after a row was toggled, without loading them again.
+     */
+    @MainThread
+    fun updateGranted(row: AppRow, granted: Boolean) {
+        val rows = _packages.value?.data ?: return
+        val newRows = rows.map { if (it.isSameApp(row)) it.withGranted(granted) else it }
+        _packages.value = Resource.success(newRows)
+        _grantedCount.value = Resource.success(newRows.count { it.granted })
+    }
+
+    /**
+     * Grants or revokes every listed app with one binder call, then updates the rows without loading them again.
+     */
+    @MainThread
+    fun setAllGranted(granted: Boolean) {
+        val rows = _packages.value?.data ?: return
         viewModelScope.launch(Dispatchers.IO) {
             try {
-                val list: MutableList<PackageInfo> = ArrayList()
-                val packages: MutableList<String> = ArrayList()
-                for (pi in AuthorizationManager.getPackages(PackageManager.GET_META_DATA)) {
-                    if (packageName == pi.packageName) continue
-                    list.add(pi)
-                    if (AuthorizationManager.granted(pi.packageName, pi.applicationInfo.uid)) packages.add(pi.packageName)
-                }
+                AuthorizationManager.setGranted(rows.map { it.packageName to it.uid }, granted)
+                val newRows = rows.map { if (it.granted == granted) it else it.withGranted(granted) }
+                _packages.postValue(Resource.success(newRows))
+                _grantedCount.postValue(Resource.success(if (granted) newRows.size else 0))
             } catch (e: CancellationException) {
 
             } catch (e: Throwable) {
@@ -4,29 +4,72 @@ import android.annotation.SuppressLint
 import android.content.Context
 import android.content.pm.ApplicationInfo
 import android.graphics.Bitmap
+import android.graphics.BitmapFactory
 import android.graphics.drawable.AdaptiveIconDrawable
+import android.os.Build
+import android.os.Process
 import android.widget.ImageView
 import androidx.collection.LruCache
 import kotlinx.coroutines.*
 import me.zhanghai.android.appiconloader.AppIconLoader
 import moe.shizuku.manager.R
 import rikka.core.util.BuildUtils
+import java.io.File
+import java.io.FileOutputStream
 import java.util.concurrent.Executor
 import java.util.concurrent.Executors
 import kotlin.coroutines.CoroutineContext
 
+/**
+ * Icons of apps in two tiers: bitmaps in memory, and WebP files in the cache dir which survive process
+ * restarts. A file is named after the package, user, size and the app's last update time, so an updated
+ * app gets a new file. Old files, and those of uninstalled apps, are deleted by [trimDiskCache].
+ */
 object AppIconCache : CoroutineScope {
 
-    private class AppIconLruCache constructor(maxSize: Int) : LruCache<Triple<String, Int, Int>, Bitmap>(maxSize) {
+    private const val DISK_CACHE_DIR = "app_icons"
 
-        override fun sizeOf(key: Triple<String, Int, Int>, bitmap: Bitmap): Int {
+    /**
+     * Key of the memory tier. Lookups fill in a per-thread instance instead of allocating one, only
+     * [copy] is stored in the cache, so stored keys never change.
+     */
+    private class IconKey(var packageName: String, var userId: Int, var size: Int) {
+
+        fun set(packageName: String, userId: Int, size: Int): IconKey {
+            this.packageName = packageName
+            this.userId = userId
+            this.size = size
+            return this
+        }
+
+        fun copy() = IconKey(packageName, userId, size)
+
+        override fun equals(other: Any?): Boolean {
+            if (this === other) return true
+            if (other !is IconKey) return false
+            return userId == other.userId && size == other.size && packageName == other.packageName
+        }
+
+        override fun hashCode(): Int {
+            return (packageName.hashCode() * 31 + userId) * 31 + size
+        }
+    }
+
+    private class AppIconLruCache constructor(maxSize: Int) : LruCache<IconKey, Bitmap>(maxSize) {
+
+        override fun sizeOf(key: IconKey, bitmap: Bitmap): Int {
             return bitmap.byteCount / 1024
         }
     }
 
-    override val coroutineContext: CoroutineContext get() = Dispatchers.Main
+    // a cached icon is set during bind rather than a frame later
+    override val coroutineContext: CoroutineContext get() = Dispatchers.Main.immediate
+
+    private val lruCache: LruCache<IconKey, Bitmap>
 
-    private val lruCache: LruCache<Triple<String, Int, Int>, Bitmap>
+    private val lookupKey = object : ThreadLocal<IconKey>() {
+        override fun initialValue() = IconKey("", 0, 0)
+    }
 
     private val dispatcher: CoroutineDispatcher
 
@@ -54,25 +97,74 @@ object AppIconCache : CoroutineScope {
     }
 
     private fun get(packageName: String, userId: Int, size: Int): Bitmap? {
-        return lruCache[Triple(packageName, userId, size)]
+        return lruCache[lookupKey.get()!!.set(packageName, userId, size)]
     }
 
     private fun put(packageName: String, userId: Int, size: Int, bitmap: Bitmap) {
         if (get(packageName, userId, size) == null) {
-            lruCache.put(Triple(packageName, userId, size), bitmap)
+            lruCache.put(lookupKey.get()!!.copy(), bitmap)
         }
     }
 
     private fun remove(packageName: String, userId: Int, size: Int) {
-        lruCache.remove(Triple(packageName, userId, size))
+        lruCache.remove(lookupKey.get()!!.set(packageName, userId, size))
+    }
+
+    // package names can't contain '-', so the prefix of one package never matches another
+    private fun getDiskCachePrefix(packageName: String, userId: Int, size: Int) = "$packageName-$userId-$size-"
+
+    private fun getDiskCacheFile(context: Context, packageName: String, userId: Int, size: Int, lastUpdateTime: Long): File {
+        return File(File(context.cacheDir, DISK_CACHE_DIR), "${getDiskCachePrefix(packageName, userId, size)}$lastUpdateTime.webp")
     }
 
+    private fun readDiskCache(file: File): Bitmap? {
+        if (!file.exists()) {
+            return null
+        }
+        return try {
+            BitmapFactory.decodeFile(file.path)
+        } catch (e: Throwable) {
+            null
+        }
+    }
+
+    private fun writeDiskCache(file: File, bitmap: Bitmap) {
+        val dir = file.parentFile!!
+        if (!dir.exists() && !dir.mkdirs()) {
+            return
+        }
+
+        val tmp = File(dir, file.name + ".tmp")
+        try {
+            @Suppress("DEPRECATION")
+            val format = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) Bitmap.CompressFormat.WEBP_LOSSY else Bitmap.CompressFormat.WEBP
+            FileOutputStream(tmp).use { bitmap.compress(format, 90, it) }
+            if (!tmp.renameTo(file)) {
+                tmp.delete()
+            }
+        } catch (e: Throwable) {
+            tmp.delete()
+        }
+    }
+
+    /**
+     * @param lastUpdateTime last update time of the app, icons cached on disk for another time are not used
+     */
     @SuppressLint("NewApi")
-    fun getOrLoadBitmap(context: Context, info: ApplicationInfo, userId: Int, size: Int): Bitmap? {
+    fun getOrLoadBitmap(context: Context, info: ApplicationInfo, userId: Int, size: Int,
+                        lastUpdateTime: Long = File(info.sourceDir).lastModified()): Bitmap? {
         val cachedBitmap = get(info.packageName, userId, size)
         if (cachedBitmap != null) {
             return cachedBitmap
         }
+
+        val file = getDiskCacheFile(context, info.packageName, userId, size, lastUpdateTime)
+        val diskBitmap = readDiskCache(file)
+        if (diskBitmap != null) {
+            put(info.packageName, userId, size, diskBitmap)
+            return diskBitmap
+        }
+
         var loader = appIconLoaders[size]
         if (loader == null) {
             val shrinkNonAdaptiveIcons = BuildUtils.atLeast30 && context.applicationInfo.loadIcon(context.packageManager) is AdaptiveIconDrawable
@@ -81,12 +173,41 @@ object AppIconCache : CoroutineScope {
         }
         val bitmap = loader.loadIcon(info, false)
         put(info.packageName, userId, size, bitmap)
+        writeDiskCache(file, bitmap)
         return bitmap
     }
 
+    /**
+     * Deletes every file on disk except the current icons of the given apps and of this app, with one
+     * listing of the dir. Called with the app list when it loads, so the disk tier holds no more than the
+     * apps listed and doesn't grow with every app installed or updated over time.
+     *
+     * @param apps package name, user and last update time of each app whose icons are kept
+     */
+    fun trimDiskCache(context: Context, apps: List<Triple<String, Int, Long>>) {
+        val files = File(context.cacheDir, DISK_CACHE_DIR).listFiles() ?: return
+
+        val kept = HashMap<String, Long>(apps.size + 1)
+        for ((packageName, userId, lastUpdateTime) in apps) {
+            kept["$packageName-$userId"] = lastUpdateTime
+        }
+        // the home page shows the icon of this app, loaded with the default last update time
+        kept["${context.packageName}-${Process.myUid() / 100000}"] = File(context.applicationInfo.sourceDir).lastModified()
+
+        for (file in files) {
+            // <package>-<user>-<size>-<last update time>.webp, anything else is a leftover .tmp
+            val parts = file.name.removeSuffix(".webp").split('-')
+            val current = file.name.endsWith(".webp") && parts.size == 4
+                    && kept["${parts[0]}-${parts[1]}"] == parts[3].toLongOrNull()
+            if (!current) {
+                file.delete()
+            }
+        }
+    }
+
     @JvmStatic
     fun loadIconBitmapAsync(context: Context,
-                            info: ApplicationInfo, userId: Int,
+                            info: ApplicationInfo, userId: Int, lastUpdateTime: Long,
                             view: ImageView): Job {
         return launch {
             val size = view.measuredWidth.let { if (it > 0) it else context.resources.getDimensionPixelSize(R.dimen.default_app_icon_size) }
@@ -95,10 +216,12 @@ object AppIconCache : CoroutineScope {
                 view.setImageBitmap(cachedBitmap)
                 return@launch
             }
+            // don't show the icon of the row this view was recycled from
+            view.setImageDrawable(null)
 
             val bitmap = try {
                 withContext(dispatcher) {
-                    getOrLoadBitmap(context, info, userId, size)
+                    getOrLoadBitmap(context, info, userId, size, lastUpdateTime)
                 }
             } catch (e: CancellationException) {
                 // do nothing if canceled
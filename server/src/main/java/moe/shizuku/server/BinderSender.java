@@ -1,65 +1,113 @@
 package moe.shizuku.server;
 
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.RemoteException;
 import android.text.TextUtils;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import hidden.HiddenApiBridge;
 import hidden.ProcessObserverAdapter;
 import hidden.UidObserverAdapter;
-import kotlin.collections.ArraysKt;
 import moe.shizuku.server.api.SystemService;
 
+import static moe.shizuku.server.ServerConstants.PERMISSION_MANAGER;
 import static moe.shizuku.server.utils.Logger.LOGGER;
 
 public class BinderSender {
 
-    private static final String PERMISSION_MANAGER = "moe.shizuku.manager.permission.MANAGER";
-    private static final String PERMISSION = "moe.shizuku.manager.permission.API_V23";
 
-    private static final List<Integer> PID_LIST = new ArrayList<>();
+    /**
+     * Process state changes come in bursts when apps launch, activations of the same uid inside this
+     * window are handled once.
+     */
+    private static final long ACTIVE_DEBOUNCE_DELAY = 100;
+
+    private static final SparseBooleanArray PIDS = new SparseBooleanArray();
+
+    // uid -> pid of pending activations, -1 when the pid is unknown
+    private static final SparseIntArray PENDING = new SparseIntArray();
+
+    private static final SparseArray<UidVerdict> UID_VERDICTS = new SparseArray<>();
+
+    private static final Runnable ACTIVE_RUNNER = BinderSender::dispatchPendingActive;
+
+    /*
+     Delivery waits on system_server and on the apps' providers, it has its own thread so that it neither
+     waits behind nor delays config writes, compaction and the other jobs of the shared worker thread.
+     */
+    private static final Handler HANDLER = createHandler();
+
+    private static Handler createHandler() {
+        HandlerThread thread = new HandlerThread("BinderSender");
+        thread.start();
+        return new Handler(thread.getLooper());
+    }
 
     private static ShizukuService sShizukuService;
 
+    /**
+     * Whether the packages of a uid request the manager or the client permission.
+     */
+    private static class UidVerdict {
+
+        static final UidVerdict NONE = new UidVerdict(false, null);
+
+        final boolean requestsManager;
+        final String clientPackageName;
+
+        UidVerdict(boolean requestsManager, String clientPackageName) {
+            this.requestsManager = requestsManager;
+            this.clientPackageName = clientPackageName;
+        }
+    }
+
     private static class ProcessObserver extends ProcessObserverAdapter {
 
         @Override
         public void onForegroundActivitiesChanged(int pid, int uid, boolean foregroundActivities) throws RemoteException {
-            LOGGER.d("onForegroundActivitiesChanged: pid=%d, uid=%d, foregroundActivities=%s", pid, uid, foregroundActivities ? "true" : "false");
+            if (LOGGER.isLoggable(Log.DEBUG)) {
+                LOGGER.d("onForegroundActivitiesChanged: pid=%d, uid=%d, foregroundActivities=%s", pid, uid, foregroundActivities ? "true" : "false");
+            }
 
-            if (PID_LIST.contains(pid) || !foregroundActivities) {
+            if (!foregroundActivities || !addPid(pid)) {
                 return;
             }
-            PID_LIST.add(pid);
 
-            onActive(uid, pid);
+            scheduleActive(uid, pid);
         }
 
         @Override
         public void onProcessDied(int pid, int uid) {
-            LOGGER.d("onProcessDied: pid=%d, uid=%d", pid, uid);
+            if (LOGGER.isLoggable(Log.DEBUG)) {
+                LOGGER.d("onProcessDied: pid=%d, uid=%d", pid, uid);
+            }
+
+            PermissionCache.getInstance().invalidate(uid, pid);
 
-            int index = PID_LIST.indexOf(pid);
-            if (index != -1) {
-                PID_LIST.remove(index);
+            synchronized (PIDS) {
+                PIDS.delete(pid);
             }
         }
 
         @Override
         public void onProcessStateChanged(int pid, int uid, int procState) throws RemoteException {
-            LOGGER.d("onProcessStateChanged: pid=%d, uid=%d, procState=%d", pid, uid, procState);
+            if (LOGGER.isLoggable(Log.DEBUG)) {
+                LOGGER.d("onProcessStateChanged: pid=%d, uid=%d, procState=%d", pid, uid, procState);
+            }
 
-            if (PID_LIST.contains(pid)) {
+            if (!addPid(pid)) {
                 return;
             }
-            PID_LIST.add(pid);
 
-            onActive(uid, pid);
+            scheduleActive(uid, pid);
         }
     }
 
@@ -67,45 +115,137 @@ public class BinderSender {
 
         @Override
         public void onUidActive(int uid) throws RemoteException {
-            LOGGER.d("onUidActive: uid=%d", uid);
+            if (LOGGER.isLoggable(Log.DEBUG)) {
+                LOGGER.d("onUidActive: uid=%d", uid);
+            }
 
-            onActive(uid);
+            scheduleActive(uid, -1);
         }
     }
 
-    private static void onActive(int uid) throws RemoteException {
-        onActive(uid, -1);
+    /**
+     * @return false if the pid is already known
+     */
+    private static boolean addPid(int pid) {
+        synchronized (PIDS) {
+            if (PIDS.get(pid)) {
+                return false;
+            }
+            PIDS.put(pid, true);
+            return true;
+        }
     }
 
-    private static void onActive(int uid, int pid) throws RemoteException {
-        List<String> packages = SystemService.getPackagesForUidNoThrow(uid);
-        if (packages.isEmpty())
-            return;
+    /**
+     * Drops the remembered verdicts, call when packages are installed, updated or removed.
+     */
+    public static void invalidateUidVerdicts() {
+        synchronized (UID_VERDICTS) {
+            UID_VERDICTS.clear();
+        }
+    }
+
+    private static void scheduleActive(int uid, int pid) {
+        synchronized (UID_VERDICTS) {
+            // known to be neither client nor manager, nothing to do and no IPC
+            if (UID_VERDICTS.get(uid) == UidVerdict.NONE) {
+                return;
+            }
+        }
+
+        synchronized (PENDING) {
+            if (PENDING.indexOfKey(uid) >= 0) {
+                return;
+            }
+            PENDING.put(uid, pid);
+            if (PENDING.size() == 1) {
+                HANDLER.postDelayed(ACTIVE_RUNNER, ACTIVE_DEBOUNCE_DELAY);
+            }
+        }
+    }
+
+    private static void dispatchPendingActive() {
+        SparseIntArray pending;
+        synchronized (PENDING) {
+            pending = PENDING.clone();
+            PENDING.clear();
+        }
+
+        for (int i = 0; i < pending.size(); i++) {
+            try {
+                onActive(pending.keyAt(i), pending.valueAt(i));
+            } catch (Throwable tr) {
+                LOGGER.w(tr, "onActive");
+            }
+        }
+    }
+
+    private static UidVerdict getUidVerdict(int uid) {
+        synchronized (UID_VERDICTS) {
+            UidVerdict verdict = UID_VERDICTS.get(uid);
+            if (verdict != null) {
+                return verdict;
+            }
+        }
 
-        LOGGER.d("onActive: uid=%d, packages=%s", uid, TextUtils.join(", ", packages));
+        PackageIndex packageIndex = PackageIndex.getInstance();
+        List<String> packages = packageIndex.getPackagesForUid(uid);
+        if (packages.isEmpty()) {
+            // may be a uid which is being installed, don't remember
+            return UidVerdict.NONE;
+        }
+
+        if (LOGGER.isLoggable(Log.DEBUG)) {
+            LOGGER.d("onActive: uid=%d, packages=%s", uid, TextUtils.join(", ", packages));
+        }
+
+        boolean requestsManager = false;
+        String clientPackageName = null;
 
         int userId = uid / 100000;
         for (String packageName : packages) {
-            PackageInfo pi = SystemService.getPackageInfoNoThrow(packageName, PackageManager.GET_PERMISSIONS, userId);
-            if (pi == null || pi.requestedPermissions == null)
+            PackageIndex.PackageRecord record = packageIndex.getPackage(packageName, userId);
+            if (record == null)
                 continue;
 
-            if (ArraysKt.contains(pi.requestedPermissions, PERMISSION_MANAGER)) {
-                boolean granted;
-                if (pid == -1)
-                    granted = SystemService.checkPermission(PERMISSION_MANAGER, uid) == PackageManager.PERMISSION_GRANTED;
-                else
-                    granted = SystemService.checkPermission(PERMISSION_MANAGER, pid, uid) == PackageManager.PERMISSION_GRANTED;
-
-                if (granted) {
-                    ShizukuService.sendBinderToManger(sShizukuService, userId);
-                    return;
-                }
-            } else if (ArraysKt.contains(pi.requestedPermissions, PERMISSION)) {
-                ShizukuService.sendBinderToUserApp(sShizukuService, packageName, userId);
+            if (record.requestsManagerPermission) {
+                requestsManager = true;
+            } else if (clientPackageName == null && record.requestsPermission) {
+                clientPackageName = packageName;
+            }
+        }
+
+        UidVerdict verdict = !requestsManager && clientPackageName == null
+                ? UidVerdict.NONE : new UidVerdict(requestsManager, clientPackageName);
+        synchronized (UID_VERDICTS) {
+            UID_VERDICTS.put(uid, verdict);
+        }
+        return verdict;
+    }
+
+    private static void onActive(int uid, int pid) throws RemoteException {
+        UidVerdict verdict = getUidVerdict(uid);
+        if (verdict == UidVerdict.NONE)
+            return;
+
+        int userId = uid / 100000;
+        if (verdict.requestsManager) {
+            boolean granted;
+            if (pid == -1)
+                granted = SystemService.checkPermission(PERMISSION_MANAGER, uid) == PackageManager.PERMISSION_GRANTED;
+            else
+                granted = SystemService.checkPermission(PERMISSION_MANAGER, pid, uid) == PackageManager.PERMISSION_GRANTED;
+
+            if (granted) {
+                ShizukuService.sendBinderToManger(sShizukuService, userId);
                 return;
             }
         }
+
+        if (verdict.clientPackageName != null) {
+            ShizukuService.sendBinderToUserApp(sShizukuService, verdict.clientPackageName, userId);
+            ClientList.onClientActive(uid, verdict.clientPackageName);
+        }
     }
 
     public static void register(ShizukuService shizukuService) {
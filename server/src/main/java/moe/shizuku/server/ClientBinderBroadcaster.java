@@ -0,0 +1,114 @@
+package moe.shizuku.server;
+
+import android.os.Binder;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static moe.shizuku.server.utils.Logger.LOGGER;
+
+/**
+ * Delivers the binder to the client apps of a {@link ClientList} when the server starts.
+ * <p>
+ * Delivery runs on a small shared pool, most recently active clients first. A provider that takes longer
+ * than {@link #PROVIDER_TIMEOUT} ms, counted from when its task starts, is logged as timed out, and clients
+ * not served when every provider could have used its full timeout are given up on.
+ */
+public class ClientBinderBroadcaster {
+
+    private static final int THREADS = 4;
+    private static final long PROVIDER_TIMEOUT = 3000;
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(THREADS, THREADS,
+            30L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+        Thread thread = new Thread(runnable, "ClientBinderBroadcaster");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    public static class Stats {
+
+        public int scannedUsers;
+        public int clients;
+        public int timedOut;
+        public long loadMillis;
+        public long deliverMillis;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH, "clients=%d, scannedUsers=%d, timedOut=%d, load=%dms, deliver=%dms",
+                    clients, scannedUsers, timedOut, loadMillis, deliverMillis);
+        }
+    }
+
+    private static volatile Stats lastStats;
+
+    public static Stats getLastStats() {
+        return lastStats;
+    }
+
+    public static void broadcast(Binder binder, ClientList list) {
+        Stats stats = new Stats();
+        List<ClientList.Client> clients = list.clients;
+        stats.scannedUsers = list.scannedUsers;
+        stats.clients = clients.size();
+        stats.loadMillis = list.loadMillis;
+
+        long start = SystemClock.elapsedRealtime();
+        AtomicInteger slow = new AtomicInteger();
+        List<Callable<Void>> tasks = new ArrayList<>(clients.size());
+        for (ClientList.Client client : clients) {
+            tasks.add(() -> {
+                long taskStart = SystemClock.elapsedRealtime();
+                ShizukuService.sendBinderToUserApp(binder, client.packageName, client.userId);
+                long took = SystemClock.elapsedRealtime() - taskStart;
+                if (took > PROVIDER_TIMEOUT) {
+                    LOGGER.w("send binder to %s in user %d took %dms", client.packageName, client.userId, took);
+                    slow.incrementAndGet();
+                }
+                return null;
+            });
+        }
+
+        // as long as it would take if every provider used its full timeout
+        long deadline = PROVIDER_TIMEOUT * ((tasks.size() + THREADS - 1) / THREADS);
+        try {
+            // a provider stuck in a binder call can't be interrupted, its thread finishes on its own
+            List<Future<Void>> futures = EXECUTOR.invokeAll(tasks, deadline, TimeUnit.MILLISECONDS);
+            for (int i = 0; i < futures.size(); i++) {
+                Future<Void> future = futures.get(i);
+                if (future.isCancelled()) {
+                    ClientList.Client client = clients.get(i);
+                    LOGGER.w("send binder to %s in user %d timed out", client.packageName, client.userId);
+                    stats.timedOut++;
+                    continue;
+                }
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    LOGGER.w(e.getCause(), "send binder");
+                }
+            }
+        } catch (InterruptedException e) {
+            LOGGER.w(e, "send binder");
+        }
+        stats.timedOut += slow.get();
+        stats.deliverMillis = SystemClock.elapsedRealtime() - start;
+
+        lastStats = stats;
+        LOGGER.i("send binder to clients: %s", stats.toString());
+    }
+}
@@ -0,0 +1,93 @@
+package moe.shizuku.server;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable lookup tables of client records, rebuilt by {@link ClientManager} whenever a client is attached or dies.
+ */
+class ClientIndex {
+
+    static final ClientIndex EMPTY = new ClientIndex(Collections.emptyList());
+
+    // open addressing table keyed by uid << 32 | pid, size is a power of two and at most half full
+    private final long[] keys;
+    private final ClientRecord[] values;
+    private final int mask;
+
+    // sorted uids and the clients of each uid
+    private final int[] uids;
+    private final List<ClientRecord>[] clientsOfUid;
+
+    @SuppressWarnings("unchecked")
+    ClientIndex(List<ClientRecord> records) {
+        int capacity = 4;
+        while (capacity < records.size() * 2) {
+            capacity <<= 1;
+        }
+        keys = new long[capacity];
+        values = new ClientRecord[capacity];
+        mask = capacity - 1;
+
+        for (ClientRecord record : records) {
+            long key = key(record.uid, record.pid);
+            int i = hash(key) & mask;
+            while (values[i] != null && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = record;
+        }
+
+        ClientRecord[] sorted = records.toArray(new ClientRecord[0]);
+        Arrays.sort(sorted, (a, b) -> Integer.compare(a.uid, b.uid));
+
+        int count = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i].uid != sorted[i - 1].uid) {
+                count++;
+            }
+        }
+        uids = new int[count];
+        clientsOfUid = new List[count];
+
+        int start = 0;
+        int n = 0;
+        for (int i = 1; i <= sorted.length; i++) {
+            if (i == sorted.length || sorted[i].uid != sorted[start].uid) {
+                uids[n] = sorted[start].uid;
+                clientsOfUid[n] = Collections.unmodifiableList(Arrays.asList(Arrays.copyOfRange(sorted, start, i)));
+                n++;
+                start = i;
+            }
+        }
+    }
+
+    private static long key(int uid, int pid) {
+        return ((long) uid << 32) | (pid & 0xffffffffL);
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    ClientRecord findClient(int uid, int pid) {
+        long key = key(uid, pid);
+        int i = hash(key) & mask;
+        ClientRecord record;
+        while ((record = values[i]) != null) {
+            if (keys[i] == key) {
+                return record;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    List<ClientRecord> findClients(int uid) {
+        int i = Arrays.binarySearch(uids, uid);
+        return i >= 0 ? clientsOfUid[i] : Collections.emptyList();
+    }
+}
@@ -0,0 +1,263 @@
+package moe.shizuku.server;
+
+import android.content.pm.PackageInfo;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.SparseArray;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import moe.shizuku.server.api.SystemService;
+import moe.shizuku.server.config.PackageFingerprint;
+import moe.shizuku.server.ktx.HandlerKt;
+import moe.shizuku.server.utils.UserHandleCompat;
+
+import static moe.shizuku.server.utils.Logger.LOGGER;
+
+/**
+ * The client packages (those requesting {@link ServerConstants#PERMISSION}) of every user, found once when the
+ * server starts and used both to deliver the binder and to reconcile the saved permissions.
+ * <p>
+ * The clients found last time (and when they were last active) are remembered in {@link #FILE}, with a
+ * {@link PackageFingerprint} of each user's packages in {@link #FINGERPRINT_FILE}. A user whose packages are
+ * unchanged since then is served from that list, otherwise its clients are found again from
+ * {@link PackageIndex}, which also drops uninstalled ones. Listing packages without flags for the
+ * fingerprint is much cheaper than the scan with permissions.
+ */
+public class ClientList {
+
+    private static final File FILE = new File("/data/local/tmp/shizuku/clients");
+    private static final File FINGERPRINT_FILE = new File("/data/local/tmp/shizuku/clients_fingerprint");
+
+    private static final long WRITE_DELAY = 10 * 1000;
+
+    public static class Client {
+
+        public final int userId;
+        public final String packageName;
+        public final int uid;
+        long lastActive;
+
+        Client(int userId, String packageName, int uid, long lastActive) {
+            this.userId = userId;
+            this.packageName = packageName;
+            this.uid = uid;
+            this.lastActive = lastActive;
+        }
+    }
+
+    private static final Map<String, Client> CLIENTS = new ArrayMap<>();
+
+    // fingerprints the client list is valid for, written with it
+    private static SparseArray<PackageFingerprint> fingerprints = new SparseArray<>();
+
+    private static final Runnable WRITE_RUNNER = ClientList::write;
+
+    /**
+     * Clients of the listed users, most recently active first.
+     */
+    public final List<Client> clients;
+
+    /**
+     * Users whose packages could be listed, nothing is known about the clients of other users.
+     */
+    public final int[] userIds;
+
+    public final int scannedUsers;
+    public final long loadMillis;
+
+    private ClientList(List<Client> clients, int[] userIds, int scannedUsers, long loadMillis) {
+        this.clients = clients;
+        this.userIds = userIds;
+        this.scannedUsers = scannedUsers;
+        this.loadMillis = loadMillis;
+    }
+
+    private static String key(int userId, String packageName) {
+        return userId + " " + packageName;
+    }
+
+    /**
+     * Remembers that a client app was active, so it is served early next time.
+     */
+    public static void onClientActive(int uid, String packageName) {
+        int userId = UserHandleCompat.getUserId(uid);
+        synchronized (CLIENTS) {
+            String key = key(userId, packageName);
+            Client client = CLIENTS.get(key);
+            if (client == null) {
+                CLIENTS.put(key, new Client(userId, packageName, uid, System.currentTimeMillis()));
+            } else {
+                client.lastActive = System.currentTimeMillis();
+            }
+        }
+        HandlerKt.getWorkerHandler().removeCallbacks(WRITE_RUNNER);
+        HandlerKt.getWorkerHandler().postDelayed(WRITE_RUNNER, WRITE_DELAY);
+    }
+
+    public static ClientList load() {
+        long start = SystemClock.elapsedRealtime();
+
+        List<Client> known = read();
+        // without the list the saved fingerprints say nothing
+        SparseArray<PackageFingerprint> saved = known != null ? PackageFingerprint.read(FINGERPRINT_FILE) : new SparseArray<>();
+        SparseArray<PackageFingerprint> current = new SparseArray<>();
+        List<Client> clients = new ArrayList<>();
+        int scannedUsers = 0;
+
+        for (int userId : SystemService.getUserIdsNoThrow()) {
+            List<PackageInfo> packages = SystemService.getInstalledPackagesNoThrow(0, userId);
+            if (packages.isEmpty()) {
+                continue;
+            }
+            PackageFingerprint fingerprint = PackageFingerprint.of(packages);
+
+            if (fingerprint.equals(saved.get(userId))) {
+                addKnown(clients, known, userId);
+                current.put(userId, fingerprint);
+                continue;
+            }
+
+            List<Client> scanned = scan(userId, known);
+            if (scanned == null) {
+                // the old clients are still the best guess, the user is scanned again next time
+                addKnown(clients, known, userId);
+                continue;
+            }
+            clients.addAll(scanned);
+            current.put(userId, fingerprint);
+            scannedUsers++;
+        }
+
+        synchronized (CLIENTS) {
+            // uninstalled packages and users which are gone
+            CLIENTS.clear();
+            for (Client client : clients) {
+                CLIENTS.put(key(client.userId, client.packageName), client);
+            }
+            fingerprints = current;
+        }
+        if (scannedUsers > 0 || known == null || known.size() != clients.size()) {
+            HandlerKt.getWorkerHandler().post(WRITE_RUNNER);
+        }
+
+        Collections.sort(clients, (a, b) -> Long.compare(b.lastActive, a.lastActive));
+
+        int[] userIds = new int[current.size()];
+        for (int i = 0; i < userIds.length; i++) {
+            userIds[i] = current.keyAt(i);
+        }
+        return new ClientList(clients, userIds, scannedUsers, SystemClock.elapsedRealtime() - start);
+    }
+
+    private static void addKnown(List<Client> clients, List<Client> known, int userId) {
+        if (known == null) {
+            return;
+        }
+        for (Client client : known) {
+            if (client.userId == userId) {
+                clients.add(client);
+            }
+        }
+    }
+
+    /**
+     * @param known clients from the file, their last active time is kept
+     * @return clients of the user, or null if its packages could not be listed
+     */
+    private static List<Client> scan(int userId, List<Client> known) {
+        Map<String, Client> knownClients = new ArrayMap<>();
+        if (known != null) {
+            for (Client client : known) {
+                if (client.userId == userId) {
+                    knownClients.put(client.packageName, client);
+                }
+            }
+        }
+
+        List<PackageIndex.PackageRecord> records;
+        try {
+            records = PackageIndex.getInstance().getPackages(userId);
+        } catch (Throwable tr) {
+            LOGGER.e("exception when call getInstalledPackages", tr);
+            return null;
+        }
+        if (records.isEmpty()) {
+            // the list without flags was not empty, this one failed
+            return null;
+        }
+
+        List<Client> clients = new ArrayList<>();
+        for (PackageIndex.PackageRecord record : records) {
+            if (record.requestsPermission) {
+                Client client = knownClients.get(record.packageName);
+                long lastActive = client != null ? client.lastActive : 0;
+                clients.add(new Client(userId, record.packageName, record.uid, lastActive));
+            }
+        }
+        return clients;
+    }
+
+    /**
+     * @return clients from the file, or null if there is no usable file
+     */
+    private static List<Client> read() {
+        if (!FILE.exists()) {
+            return null;
+        }
+
+        List<Client> clients = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(FILE))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if (parts.length != 4) {
+                    // written by an older version without uids
+                    return null;
+                }
+                clients.add(new Client(Integer.parseInt(parts[0]), parts[1], Integer.parseInt(parts[2]), Long.parseLong(parts[3])));
+            }
+        } catch (Throwable tr) {
+            LOGGER.w(tr, "read %s", FILE);
+            return null;
+        }
+        return clients;
+    }
+
+    private static void write() {
+        List<Client> clients;
+        SparseArray<PackageFingerprint> fingerprints;
+        synchronized (CLIENTS) {
+            clients = new ArrayList<>(CLIENTS.values());
+            fingerprints = ClientList.fingerprints;
+        }
+
+        File tmp = new File(FILE.getPath() + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp)))) {
+            for (Client client : clients) {
+                writer.write(client.userId + " " + client.packageName + " " + client.uid + " " + client.lastActive);
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            LOGGER.w(e, "write %s", FILE);
+            return;
+        }
+        if (!tmp.renameTo(FILE)) {
+            LOGGER.w("rename %s failed", tmp);
+            return;
+        }
+
+        // after the list, so the fingerprints never describe a list that was not written
+        PackageFingerprint.write(FINGERPRINT_FILE, fingerprints);
+    }
+}
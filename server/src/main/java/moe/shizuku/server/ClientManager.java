@@ -4,7 +4,6 @@ import android.os.IBinder;
 import android.os.RemoteException;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 import moe.shizuku.server.config.Config;
@@ -18,45 +17,63 @@ public class ClientManager {
 
     public static ClientManager getInstance() {
         if (instance == null) {
-            instance = new ClientManager();
+            ConfigManager configManager = ConfigManager.getInstance();
+            instance = new ClientManager(uid -> {
+                Config.PackageEntry entry = configManager.find(uid);
+                return entry != null && entry.isAllowed();
+            }, PermissionCache.getInstance());
         }
         return instance;
     }
 
-    private final ConfigManager configManager = ConfigManager.getInstance();
-    private final List<ClientRecord> clientRecords = Collections.synchronizedList(new ArrayList<>());
+    /**
+     * Whether a uid is allowed when its client attaches, from {@link ConfigManager} outside of tests.
+     */
+    interface PermissionSource {
+        boolean isAllowed(int uid);
+    }
 
-    public List<ClientRecord> findClients(int uid) {
-        synchronized (this) {
-            List<ClientRecord> res = new ArrayList<>();
-            for (ClientRecord clientRecord : clientRecords) {
-                if (clientRecord.uid == uid) {
-                    res.add(clientRecord);
-                }
-            }
-            return res;
+    private final PermissionSource permissionSource;
+    private final PermissionCache permissionCache;
+
+    /*
+     Clients are attached and die rarely compared to how often they are looked up (every transaction),
+     so writers rebuild an immutable index under the lock and readers only read the volatile reference.
+     */
+    private final List<ClientRecord> clientRecords = new ArrayList<>();
+    private volatile ClientIndex index = ClientIndex.EMPTY;
+
+    ClientManager(PermissionSource permissionSource, PermissionCache permissionCache) {
+        this.permissionSource = permissionSource;
+        this.permissionCache = permissionCache;
+    }
+
+    public int getClientCount() {
+        synchronized (clientRecords) {
+            return clientRecords.size();
         }
     }
 
+    public List<ClientRecord> findClients(int uid) {
+        return index.findClients(uid);
+    }
+
     public ClientRecord findClient(int uid, int pid) {
-        for (ClientRecord clientRecord : clientRecords) {
-            if (clientRecord.pid == pid && clientRecord.uid == uid) {
-                return clientRecord;
-            }
-        }
-        return null;
+        return index.findClient(uid, pid);
     }
 
     public ClientRecord addClient(int uid, int pid, IShizukuApplication client, String packageName) {
         ClientRecord clientRecord = new ClientRecord(uid, pid, client, packageName);
 
-        Config.PackageEntry entry = configManager.find(uid);
-        if (entry != null && entry.isAllowed()) {
+        if (permissionSource.isAllowed(uid)) {
             clientRecord.allowed = true;
         }
 
         IBinder binder = client.asBinder();
-        IBinder.DeathRecipient deathRecipient = (IBinder.DeathRecipient) () -> clientRecords.remove(clientRecord);
+        IBinder.DeathRecipient deathRecipient = (IBinder.DeathRecipient) () -> {
+            removeClient(clientRecord);
+            permissionCache.invalidate(uid, pid);
+        };
         try {
             binder.linkToDeath(deathRecipient, 0);
         } catch (RemoteException e) {
@@ -64,9 +81,19 @@ public class ClientManager {
             return null;
         }
 
-        clientRecords.add(clientRecord);
+        synchronized (clientRecords) {
+            clientRecords.add(clientRecord);
+            index = new ClientIndex(clientRecords);
+        }
+        permissionCache.invalidate(uid, pid);
         return clientRecord;
     }
-}
-
 
+    private void removeClient(ClientRecord clientRecord) {
+        synchronized (clientRecords) {
+            if (clientRecords.remove(clientRecord)) {
+                index = new ClientIndex(clientRecords);
+            }
+        }
+    }
+}
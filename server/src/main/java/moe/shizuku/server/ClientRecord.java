@@ -11,7 +11,7 @@ public class ClientRecord {
     public final int pid;
     public final IShizukuApplication client;
     public final String packageName;
-    public boolean allowed;
+    public volatile boolean allowed;
 
     public ClientRecord(int uid, int pid, IShizukuApplication client, String packageName) {
         this.uid = uid;
@@ -0,0 +1,131 @@
+package moe.shizuku.server;
+
+import android.util.SparseArray;
+
+import java.util.PriorityQueue;
+
+/**
+ * Weighted fair queue in front of expensive operations, at most {@code permits} of them run at the same time.
+ * <p>
+ * Waiters are served by virtual finish time: a uid with weight w gets a new tag every 1/w units, so a uid
+ * that queues many operations only delays its own, and a uid with twice the weight is served twice as often
+ * while both are waiting.
+ */
+public class FairQueue {
+
+    private static class Ticket implements Comparable<Ticket> {
+
+        final double start;
+        final double finish;
+        final long sequence;
+        boolean granted;
+
+        Ticket(double start, double finish, long sequence) {
+            this.start = start;
+            this.finish = finish;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Ticket o) {
+            int result = Double.compare(finish, o.finish);
+            return result != 0 ? result : Long.compare(sequence, o.sequence);
+        }
+    }
+
+    private final int permits;
+    private final PriorityQueue<Ticket> waiting = new PriorityQueue<>();
+    private final SparseArray<Double> lastFinish = new SparseArray<>();
+    private double virtualTime;
+    private long sequence;
+    private int running;
+
+    public FairQueue(int permits) {
+        this.permits = permits;
+    }
+
+    /**
+     * Takes a permit only if one is free and nobody is waiting, never blocks. Must be followed by
+     * {@link #release()} if it returns true.
+     */
+    public boolean tryAcquire(int uid, int weight) {
+        synchronized (this) {
+            if (running >= permits || !waiting.isEmpty()) {
+                return false;
+            }
+
+            Double last = lastFinish.get(uid);
+            double start = Math.max(virtualTime, last != null ? last : 0);
+            lastFinish.put(uid, start + 1.0 / Math.max(1, weight));
+            running++;
+            virtualTime = start;
+            return true;
+        }
+    }
+
+    /**
+     * Waits for the turn of the uid. Each acquire must be followed by {@link #release()}.
+     *
+     * @return time spent waiting in milliseconds
+     */
+    public long acquire(int uid, int weight) throws InterruptedException {
+        synchronized (this) {
+            Double last = lastFinish.get(uid);
+            double start = Math.max(virtualTime, last != null ? last : 0);
+            double finish = start + 1.0 / Math.max(1, weight);
+            lastFinish.put(uid, finish);
+
+            if (running < permits && waiting.isEmpty()) {
+                running++;
+                virtualTime = start;
+                return 0;
+            }
+
+            long begin = System.currentTimeMillis();
+            Ticket ticket = new Ticket(start, finish, sequence++);
+            waiting.add(ticket);
+            try {
+                while (!ticket.granted) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                if (ticket.granted) {
+                    // the permit is already ours, hand it on
+                    releaseLocked();
+                } else {
+                    waiting.remove(ticket);
+                }
+                throw e;
+            }
+            return System.currentTimeMillis() - begin;
+        }
+    }
+
+    public void release() {
+        synchronized (this) {
+            releaseLocked();
+        }
+    }
+
+    private void releaseLocked() {
+        running--;
+
+        Ticket next = waiting.poll();
+        if (next != null) {
+            next.granted = true;
+            running++;
+            virtualTime = next.start;
+            notifyAll();
+        } else if (running == 0) {
+            // idle, old tags mean nothing any more
+            lastFinish.clear();
+            virtualTime = 0;
+        }
+    }
+
+    public int getWaitingCount() {
+        synchronized (this) {
+            return waiting.size();
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package moe.shizuku.server;
+
+import android.os.IBinder;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import moe.shizuku.server.api.RemoteProcessHolder;
+import moe.shizuku.server.api.SystemServiceBinder;
+import moe.shizuku.server.utils.BinderDescriptors;
+import moe.shizuku.server.utils.LatencyHistogram;
+import moe.shizuku.server.utils.ParcelFileDescriptorUtil;
+import rikka.shizuku.ShizukuApiConstants;
+
+/**
+ * Counts and latencies of the calls the server handles, plus a few gauges, printed by the binder dump and
+ * returned by {@link ServerConstants#BINDER_TRANSACTION_getMetrics}.
+ * <p>
+ * Calls are keyed by transaction code, codes the server does not know share one "other" entry. Remote calls
+ * made through transactRemote are keyed by target binder and code, the descriptor of each binder is only
+ * looked up when the metrics are printed so recording never makes a binder call. Both are bounded whatever
+ * binders and codes clients send. Names are resolved when the metrics are printed.
+ */
+public class Metrics {
+
+    private static final int CODE_OTHER = -1;
+
+    // remote codes from FIRST_CALL_TRANSACTION up to this many above it get their own entry
+    private static final int MAX_REMOTE_CODES = 256;
+
+    // remote binders which get their own entry, calls to later ones share one
+    private static final int MAX_REMOTE_BINDERS = 64;
+
+    private static Metrics instance;
+
+    public static Metrics getInstance() {
+        if (instance == null) {
+            instance = new Metrics();
+        }
+        return instance;
+    }
+
+    public static class CallStats {
+
+        public final AtomicLong errors = new AtomicLong();
+        public final LatencyHistogram latency = new LatencyHistogram();
+
+        void print(PrintWriter pw, String name) {
+            pw.println(String.format(Locale.ENGLISH, "  %s: calls=%d, errors=%d, mean=%dus, p50=%dus, p90=%dus, p99=%dus, max=%dus",
+                    name, latency.getCount(), errors.get(), latency.getMean(),
+                    latency.getPercentile(50), latency.getPercentile(90), latency.getPercentile(99), latency.getMax()));
+        }
+    }
+
+    private static class RemoteBinderStats {
+
+        // null for the entry shared by binders over MAX_REMOTE_BINDERS
+        final WeakReference<IBinder> binder;
+        // the last slot is for all other codes
+        final AtomicReferenceArray<CallStats> calls = new AtomicReferenceArray<>(MAX_REMOTE_CODES + 1);
+        volatile String descriptor;
+
+        RemoteBinderStats(IBinder binder) {
+            this.binder = binder != null ? new WeakReference<>(binder) : null;
+        }
+
+        void record(int code, long nanos, boolean error) {
+            int index = code - IBinder.FIRST_CALL_TRANSACTION;
+            if (index < 0 || index >= MAX_REMOTE_CODES) {
+                index = MAX_REMOTE_CODES;
+            }
+
+            CallStats stats = calls.get(index);
+            if (stats == null) {
+                calls.compareAndSet(index, null, new CallStats());
+                stats = calls.get(index);
+            }
+            Metrics.record(stats, nanos, error);
+        }
+
+        /**
+         * Called when printing only, the descriptor is kept once found so stats of a binder which is gone
+         * by the next dump are still named.
+         */
+        String getName() {
+            if (binder == null) {
+                return "other binders";
+            }
+            if (descriptor == null) {
+                IBinder target = binder.get();
+                if (target != null) {
+                    descriptor = BinderDescriptors.get(target);
+                }
+            }
+            return descriptor != null ? descriptor : "unknown binder";
+        }
+
+        void print(PrintWriter pw) {
+            String name = getName();
+            for (int i = 0; i <= MAX_REMOTE_CODES; i++) {
+                CallStats stats = calls.get(i);
+                if (stats != null) {
+                    stats.print(pw, name + " " + (i < MAX_REMOTE_CODES ? "code " + (IBinder.FIRST_CALL_TRANSACTION + i) : "other codes"));
+                }
+            }
+        }
+    }
+
+    private final ConcurrentHashMap<Integer, CallStats> calls = new ConcurrentHashMap<>();
+    // binders are compared by identity, an entry goes away with its binder
+    private final Map<IBinder, RemoteBinderStats> remoteBinders = new WeakHashMap<>();
+    // stats outlive their binders, in the order the binders were first called
+    private final List<RemoteBinderStats> remoteCalls = new ArrayList<>();
+    private final RemoteBinderStats otherRemoteCalls = new RemoteBinderStats(null);
+    private final AtomicLong processesStarted = new AtomicLong();
+    private final SparseIntArray throttledTransactions = new SparseIntArray();
+    private final SparseIntArray throttledSpawns = new SparseIntArray();
+    private final LatencyHistogram spawnQueueWait = new LatencyHistogram();
+    private final SparseArray<String> callNames = new SparseArray<>();
+
+    private Metrics() {
+        for (Field field : IShizukuService.Stub.class.getDeclaredFields()) {
+            if (field.getType() != int.class || !Modifier.isStatic(field.getModifiers())
+                    || !field.getName().startsWith("TRANSACTION_")) {
+                continue;
+            }
+            try {
+                field.setAccessible(true);
+                callNames.put(field.getInt(null), field.getName().substring("TRANSACTION_".length()));
+            } catch (Throwable ignored) {
+            }
+        }
+        callNames.put(ShizukuApiConstants.BINDER_TRANSACTION_transact, "transactRemote");
+        callNames.put(ServerConstants.BINDER_TRANSACTION_transactBatch, "transactRemoteBatch");
+        callNames.put(ServerConstants.BINDER_TRANSACTION_getMetrics, "getMetrics");
+        callNames.put(ServerConstants.BINDER_TRANSACTION_getFlagsForUids, "getFlagsForUids");
+        callNames.put(ServerConstants.BINDER_TRANSACTION_updateFlagsForUids, "updateFlagsForUids");
+        callNames.put(IBinder.INTERFACE_TRANSACTION, "getInterfaceDescriptor");
+        callNames.put(IBinder.DUMP_TRANSACTION, "dump");
+        callNames.put(CODE_OTHER, "other");
+    }
+
+    private static CallStats getOrCreate(ConcurrentHashMap<Integer, CallStats> map, int code) {
+        CallStats stats = map.get(code);
+        if (stats == null) {
+            stats = new CallStats();
+            CallStats old = map.putIfAbsent(code, stats);
+            if (old != null) {
+                stats = old;
+            }
+        }
+        return stats;
+    }
+
+    private static void record(CallStats stats, long nanos, boolean error) {
+        stats.latency.record(nanos / 1000);
+        if (error) {
+            stats.errors.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records a transaction received by the server.
+     */
+    public void recordCall(int code, long nanos, boolean error) {
+        // callNames is not changed after the constructor, reading it needs no lock
+        if (callNames.indexOfKey(code) < 0) {
+            code = CODE_OTHER;
+        }
+        record(getOrCreate(calls, code), nanos, error);
+    }
+
+    /**
+     * Records a transaction sent to a system service for a client.
+     */
+    public void recordRemoteCall(IBinder binder, int code, long nanos, boolean error) {
+        RemoteBinderStats stats;
+        synchronized (remoteBinders) {
+            stats = remoteBinders.get(binder);
+            if (stats == null) {
+                if (remoteCalls.size() < MAX_REMOTE_BINDERS) {
+                    stats = new RemoteBinderStats(binder);
+                    remoteBinders.put(binder, stats);
+                    remoteCalls.add(stats);
+                } else {
+                    stats = otherRemoteCalls;
+                }
+            }
+        }
+        stats.record(code, nanos, error);
+    }
+
+    public void onProcessStarted() {
+        processesStarted.incrementAndGet();
+    }
+
+    /**
+     * Records a call rejected by {@link RateLimiter}.
+     */
+    public void onThrottled(int uid, int kind) {
+        SparseIntArray counts = kind == RateLimiter.KIND_SPAWN ? throttledSpawns : throttledTransactions;
+        synchronized (counts) {
+            counts.put(uid, counts.get(uid) + 1);
+        }
+    }
+
+    public void recordSpawnQueueWait(long millis) {
+        spawnQueueWait.record(millis * 1000);
+    }
+
+    private static void printThrottled(PrintWriter pw, String name, SparseIntArray counts) {
+        StringBuilder sb = new StringBuilder(name).append(":");
+        synchronized (counts) {
+            for (int i = 0; i < counts.size(); i++) {
+                sb.append(' ').append(counts.keyAt(i)).append('=').append(counts.valueAt(i));
+            }
+        }
+        pw.println(sb);
+    }
+
+    private String getCallName(int code) {
+        String name = callNames.get(code);
+        return name != null ? name : "code " + code;
+    }
+
+    private static List<Integer> sortedCodes(Map<Integer, CallStats> map) {
+        List<Integer> codes = new ArrayList<>(map.keySet());
+        Collections.sort(codes);
+        return codes;
+    }
+
+    public void dump(PrintWriter pw, ShizukuService service) {
+        pw.println("clients: " + ClientManager.getInstance().getClientCount());
+        pw.println("user services: " + service.getUserServiceStats());
+        pw.println(String.format(Locale.ENGLISH, "processes: started=%d, alive=%d",
+                processesStarted.get(), RemoteProcessHolder.getAliveCount()));
+        pw.println("transferred bytes: " + ParcelFileDescriptorUtil.getTransferredBytes());
+
+        PermissionCache permissionCache = PermissionCache.getInstance();
+        pw.println(String.format(Locale.ENGLISH, "permission cache: hits=%d, misses=%d",
+                permissionCache.getHitCount(), permissionCache.getMissCount()));
+        TransactionCache transactionCache = TransactionCache.getInstance();
+        pw.println(String.format(Locale.ENGLISH, "transaction cache: enabled=%s, hits=%d, misses=%d",
+                Boolean.toString(transactionCache.isEnabled()), transactionCache.getHitCount(), transactionCache.getMissCount()));
+        ClientBinderBroadcaster.Stats broadcastStats = ClientBinderBroadcaster.getLastStats();
+        pw.println("startup broadcast: " + (broadcastStats != null ? broadcastStats : "not finished"));
+
+        printThrottled(pw, "throttled transactions by uid", throttledTransactions);
+        printThrottled(pw, "throttled spawns by uid", throttledSpawns);
+        pw.println(String.format(Locale.ENGLISH, "spawn queue: spawns=%d, wait p50=%dus, p99=%dus, max=%dus",
+                spawnQueueWait.getCount(), spawnQueueWait.getPercentile(50), spawnQueueWait.getPercentile(99), spawnQueueWait.getMax()));
+
+        pw.println("system services:");
+        for (SystemServiceBinder<?> binder : SystemServiceBinder.getAll()) {
+            pw.println(String.format(Locale.ENGLISH, "  %s: resolved=%d, not found=%d, died=%d, retried=%d",
+                    binder.getName(), binder.getResolutions().get(), binder.getFailedResolutions().get(),
+                    binder.getDeaths().get(), binder.getRetries().get()));
+        }
+
+        pw.println("calls:");
+        for (int code : sortedCodes(calls)) {
+            calls.get(code).print(pw, getCallName(code));
+        }
+
+        pw.println("remote calls:");
+        List<RemoteBinderStats> remoteStats;
+        synchronized (remoteBinders) {
+            remoteStats = new ArrayList<>(remoteCalls);
+        }
+        remoteStats.add(otherRemoteCalls);
+        for (RemoteBinderStats stats : remoteStats) {
+            stats.print(pw);
+        }
+    }
+}
@@ -0,0 +1,357 @@
+package moe.shizuku.server;
+
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import hidden.OnAppsChangedListenerAdapter;
+import kotlin.collections.ArraysKt;
+import moe.shizuku.server.api.SystemService;
+import moe.shizuku.server.utils.OsUtils;
+import moe.shizuku.server.utils.UserHandleCompat;
+
+import static moe.shizuku.server.ServerConstants.PERMISSION;
+import static moe.shizuku.server.ServerConstants.PERMISSION_MANAGER;
+import static moe.shizuku.server.utils.Logger.LOGGER;
+
+/**
+ * The installed packages of each user, with what the server needs to know about them, kept in memory so
+ * that permission checks and binder delivery do not query the package manager every time.
+ * <p>
+ * A user is listed once with getInstalledPackages and then updated package by package from
+ * {@code IOnAppsChangedListener}. LauncherApps only reports the users in the server's profile group, so a
+ * user no event has been seen for is listed again once it is older than {@link #UNWATCHED_USER_MAX_AGE}.
+ * When the listener can't be registered nothing is kept and every call goes to the package manager.
+ * <p>
+ * A package or uid that is not found in memory is looked up again, it may have been installed just now.
+ * <p>
+ * Listing a user takes a while and runs without the lock, lookups of other users and of already listed
+ * ones go on meanwhile. {@link #isPackageOfUid(String, int)}, used for ownership checks, only trusts users
+ * kept up to date by the listener.
+ */
+public class PackageIndex {
+
+    private static final long UNWATCHED_USER_MAX_AGE = 60 * 1000;
+
+    private static PackageIndex instance;
+
+    public static PackageIndex getInstance() {
+        if (instance == null) {
+            instance = new PackageIndex();
+        }
+        return instance;
+    }
+
+    public static class PackageRecord {
+
+        public final String packageName;
+        public final int uid;
+        public final String sourceDir;
+        public final boolean requestsPermission;
+        public final boolean requestsManagerPermission;
+
+        PackageRecord(PackageInfo pi) {
+            this.packageName = pi.packageName;
+            this.uid = pi.applicationInfo.uid;
+            this.sourceDir = pi.applicationInfo.sourceDir;
+            this.requestsPermission = pi.requestedPermissions != null && ArraysKt.contains(pi.requestedPermissions, PERMISSION);
+            this.requestsManagerPermission = pi.requestedPermissions != null && ArraysKt.contains(pi.requestedPermissions, PERMISSION_MANAGER);
+        }
+    }
+
+    private static class UserIndex {
+
+        final Map<String, PackageRecord> packages = new ArrayMap<>();
+        final SparseArray<List<String>> uids = new SparseArray<>();
+        final long time = SystemClock.elapsedRealtime();
+        boolean watched;
+
+        void put(PackageRecord record) {
+            remove(record.packageName);
+            packages.put(record.packageName, record);
+
+            List<String> names = uids.get(record.uid);
+            if (names == null) {
+                names = new ArrayList<>(1);
+                uids.put(record.uid, names);
+            }
+            names.add(record.packageName);
+        }
+
+        void remove(String packageName) {
+            PackageRecord old = packages.remove(packageName);
+            if (old == null) {
+                return;
+            }
+            List<String> names = uids.get(old.uid);
+            if (names != null) {
+                names.remove(packageName);
+                if (names.isEmpty()) {
+                    uids.remove(old.uid);
+                }
+            }
+        }
+    }
+
+    private final SparseArray<UserIndex> users = new SparseArray<>();
+    // moved on by every change, a listing that saw a change happen meanwhile is not kept
+    private int modCount;
+    private final List<Runnable> listeners = new ArrayList<>();
+    private boolean listening;
+
+    private final OnAppsChangedListenerAdapter appsChangedListener = new OnAppsChangedListenerAdapter() {
+
+        @Override
+        public void onPackageAdded(UserHandle user, String packageName) {
+            refresh(user.getIdentifier(), packageName);
+        }
+
+        @Override
+        public void onPackageChanged(UserHandle user, String packageName) {
+            refresh(user.getIdentifier(), packageName);
+        }
+
+        @Override
+        public void onPackageRemoved(UserHandle user, String packageName) {
+            remove(user.getIdentifier(), packageName);
+        }
+
+        @Override
+        public void onPackagesAvailable(UserHandle user, String[] packageNames, boolean replacing) {
+            for (String packageName : packageNames) {
+                refresh(user.getIdentifier(), packageName);
+            }
+        }
+
+        @Override
+        public void onPackagesUnavailable(UserHandle user, String[] packageNames, boolean replacing) {
+            for (String packageName : packageNames) {
+                remove(user.getIdentifier(), packageName);
+            }
+        }
+    };
+
+    private PackageIndex() {
+        String callingPackage = OsUtils.getUid() == 2000 ? "com.android.shell" : null;
+        try {
+            SystemService.addOnAppsChangedListener(callingPackage, appsChangedListener);
+            listening = true;
+        } catch (Throwable tr) {
+            LOGGER.w(tr, "addOnAppsChangedListener, packages will not be kept in memory");
+        }
+    }
+
+    /**
+     * Adds a listener called on a binder thread after any package changes.
+     */
+    public void addOnChangedListener(Runnable listener) {
+        synchronized (listeners) {
+            listeners.add(listener);
+        }
+    }
+
+    private void notifyChanged() {
+        List<Runnable> copy;
+        synchronized (listeners) {
+            copy = new ArrayList<>(listeners);
+        }
+        for (Runnable listener : copy) {
+            listener.run();
+        }
+    }
+
+    private static boolean isFresh(UserIndex index) {
+        return index != null && (index.watched || SystemClock.elapsedRealtime() - index.time < UNWATCHED_USER_MAX_AGE);
+    }
+
+    /**
+     * @return index of the user, listed first if needed. Its content must be read under the lock.
+     */
+    private UserIndex getUser(int userId) {
+        UserIndex index;
+        int expectedModCount;
+        synchronized (users) {
+            index = users.get(userId);
+            if (isFresh(index)) {
+                return index;
+            }
+            expectedModCount = modCount;
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        UserIndex newIndex = new UserIndex();
+        for (PackageInfo pi : SystemService.getInstalledPackagesNoThrow(PackageManager.GET_PERMISSIONS, userId)) {
+            if (pi != null && pi.applicationInfo != null) {
+                newIndex.put(new PackageRecord(pi));
+            }
+        }
+
+        synchronized (users) {
+            UserIndex current = users.get(userId);
+            if (current != index && isFresh(current)) {
+                // listed by another thread meanwhile
+                return current;
+            }
+            // the server's own user is always reported
+            newIndex.watched = index != null && index.watched || userId == UserHandleCompat.getUserId(OsUtils.getUid());
+            if (modCount == expectedModCount) {
+                users.put(userId, newIndex);
+                LOGGER.i("indexed %d packages of user %d in %dms", newIndex.packages.size(), userId, SystemClock.elapsedRealtime() - start);
+            }
+            return newIndex;
+        }
+    }
+
+    private void refresh(int userId, String packageName) {
+        PackageInfo pi = SystemService.getPackageInfoNoThrow(packageName, PackageManager.GET_PERMISSIONS, userId);
+        synchronized (users) {
+            modCount++;
+            UserIndex index = users.get(userId);
+            if (index != null) {
+                index.watched = true;
+                if (pi != null && pi.applicationInfo != null) {
+                    index.put(new PackageRecord(pi));
+                } else {
+                    index.remove(packageName);
+                }
+            }
+        }
+        notifyChanged();
+    }
+
+    private void remove(int userId, String packageName) {
+        synchronized (users) {
+            modCount++;
+            UserIndex index = users.get(userId);
+            if (index != null) {
+                index.watched = true;
+                index.remove(packageName);
+            }
+        }
+        notifyChanged();
+    }
+
+    /**
+     * Drops everything, packages are listed again when next needed.
+     */
+    public void invalidateAll() {
+        synchronized (users) {
+            modCount++;
+            users.clear();
+        }
+    }
+
+    /**
+     * @return all packages of the user
+     */
+    public List<PackageRecord> getPackages(int userId) {
+        if (!listening) {
+            List<PackageRecord> records = new ArrayList<>();
+            for (PackageInfo pi : SystemService.getInstalledPackagesNoThrow(PackageManager.GET_PERMISSIONS, userId)) {
+                if (pi != null && pi.applicationInfo != null) {
+                    records.add(new PackageRecord(pi));
+                }
+            }
+            return records;
+        }
+
+        UserIndex index = getUser(userId);
+        synchronized (users) {
+            return new ArrayList<>(index.packages.values());
+        }
+    }
+
+    /**
+     * @return the package, or null if it is not installed for the user
+     */
+    public PackageRecord getPackage(String packageName, int userId) {
+        if (listening) {
+            UserIndex index = getUser(userId);
+            synchronized (users) {
+                PackageRecord record = index.packages.get(packageName);
+                if (record != null) {
+                    return record;
+                }
+            }
+        }
+
+        PackageInfo pi = SystemService.getPackageInfoNoThrow(packageName, PackageManager.GET_PERMISSIONS, userId);
+        if (pi == null || pi.applicationInfo == null) {
+            return null;
+        }
+
+        PackageRecord record = new PackageRecord(pi);
+        if (listening) {
+            synchronized (users) {
+                UserIndex index = users.get(userId);
+                if (index != null) {
+                    index.put(record);
+                }
+            }
+        }
+        return record;
+    }
+
+    /**
+     * @return packages which run as the uid
+     */
+    public List<String> getPackagesForUid(int uid) {
+        if (listening) {
+            UserIndex index = getUser(UserHandleCompat.getUserId(uid));
+            synchronized (users) {
+                List<String> names = index.uids.get(uid);
+                if (names != null && !names.isEmpty()) {
+                    return new ArrayList<>(names);
+                }
+            }
+        }
+        return SystemService.getPackagesForUidNoThrow(uid);
+    }
+
+    /**
+     * Ownership check. The index is trusted only for users the listener keeps up to date, anything else,
+     * including a miss, asks the package manager.
+     */
+    public boolean isPackageOfUid(String packageName, int uid) {
+        if (listening) {
+            synchronized (users) {
+                UserIndex index = users.get(UserHandleCompat.getUserId(uid));
+                if (index != null && index.watched) {
+                    PackageRecord record = index.packages.get(packageName);
+                    if (record != null && record.uid == uid) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return SystemService.getPackagesForUidNoThrow(uid).contains(packageName);
+    }
+
+    /**
+     * @return packages which run as the uid and request {@link ServerConstants#PERMISSION}
+     */
+    public List<PackageRecord> getClientPackagesForUid(int uid) {
+        int userId = UserHandleCompat.getUserId(uid);
+        List<String> names = getPackagesForUid(uid);
+        if (names.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<PackageRecord> records = new ArrayList<>(names.size());
+        for (String packageName : names) {
+            PackageRecord record = getPackage(packageName, userId);
+            if (record != null && record.requestsPermission) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+}
@@ -0,0 +1,94 @@
+package moe.shizuku.server;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers callers (uid, pid) which have passed {@code enforceCallingPermission} so that repeated calls
+ * from an allowed client do not need to find the client record or ask system_server again.
+ * <p>
+ * Only granted verdicts are cached, denied callers always go through the full check.
+ * <p>
+ * A verdict is put with the {@link #getGeneration() generation} read before it was made. Every invalidation
+ * moves the generation on, so a verdict made from state that was changed meanwhile is not kept.
+ */
+public class PermissionCache {
+
+    private static PermissionCache instance;
+
+    public static PermissionCache getInstance() {
+        if (instance == null) {
+            instance = new PermissionCache();
+        }
+        return instance;
+    }
+
+    private final Map<Long, Boolean> granted = new ConcurrentHashMap<>();
+    private final AtomicInteger generation = new AtomicInteger();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private static long key(int uid, int pid) {
+        return ((long) uid << 32) | (pid & 0xffffffffL);
+    }
+
+    private static int uidOf(long key) {
+        return (int) (key >>> 32);
+    }
+
+    public boolean isGranted(int uid, int pid) {
+        if (granted.containsKey(key(uid, pid))) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @return the value to pass to {@link #putGranted(int, int, int)}, read before the verdict is made
+     */
+    public int getGeneration() {
+        return generation.get();
+    }
+
+    public void putGranted(int uid, int pid, int generation) {
+        long key = key(uid, pid);
+        granted.put(key, Boolean.TRUE);
+        // an invalidation since the verdict was made may have run before the put above
+        if (this.generation.get() != generation) {
+            granted.remove(key);
+        }
+    }
+
+    public void invalidate(int uid, int pid) {
+        generation.incrementAndGet();
+        granted.remove(key(uid, pid));
+    }
+
+    public void invalidateUid(int uid) {
+        generation.incrementAndGet();
+        Iterator<Long> it = granted.keySet().iterator();
+        while (it.hasNext()) {
+            if (uidOf(it.next()) == uid) {
+                it.remove();
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        granted.clear();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+}
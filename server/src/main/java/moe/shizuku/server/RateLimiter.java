@@ -0,0 +1,218 @@
+package moe.shizuku.server;
+
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.util.SparseArray;
+
+import moe.shizuku.server.config.Config;
+import moe.shizuku.server.config.ConfigManager;
+
+/**
+ * Token buckets per calling uid, so that one client can't occupy all binder threads of the server.
+ * <p>
+ * Each uid has a bucket for remote transactions and one for process starts (newProcess and user services).
+ * Rates and weights depend on the quota in the uid's {@link Config.PackageEntry}, a bucket remembers the
+ * quota until {@link #invalidate(int)} replaces it. Buckets are spread over a few locks by uid, so a check is
+ * one uncontended lock and some arithmetic.
+ * <p>
+ * Off unless {@code persist.shizuku.rate_limit} is set to true, callers are never rejected then.
+ */
+public class RateLimiter {
+
+    private static final boolean ENABLED = getEnabled();
+
+    private static boolean getEnabled() {
+        try {
+            return SystemProperties.getBoolean("persist.shizuku.rate_limit", false);
+        } catch (Throwable tr) {
+            return false;
+        }
+    }
+
+    public static final int KIND_TRANSACT = 0;
+    public static final int KIND_SPAWN = 1;
+
+    // per second and bucket size for QUOTA_DEFAULT, indexed by kind
+    private static final int[] RATES = {2000, 10};
+    private static final int[] BURSTS = {5000, 30};
+
+    // tokens are counted in 1/1000 to keep fractions without floating point
+    private static final long SCALE = 1000;
+
+    // refill is computed from at most this much idle time, a full bucket doesn't need more
+    private static final long MAX_REFILL_NANOS = 60L * 1000 * 1000 * 1000;
+
+    private static final int STRIPES = 32;
+
+    private static RateLimiter instance;
+
+    public static RateLimiter getInstance() {
+        if (instance == null) {
+            instance = new RateLimiter(ENABLED, RateLimiter::getConfiguredQuota);
+        }
+        return instance;
+    }
+
+    /**
+     * Quota of a uid, from {@link ConfigManager} outside of tests.
+     */
+    interface QuotaSource {
+        int getQuota(int uid);
+    }
+
+    private static class Bucket {
+
+        final int quota;
+        final long[] tokens = new long[RATES.length];
+        final long[] lastRefill = new long[RATES.length];
+
+        Bucket(int quota, long now) {
+            this.quota = quota;
+            for (int kind = 0; kind < RATES.length; kind++) {
+                tokens[kind] = getBurst(quota, kind) * SCALE;
+                lastRefill[kind] = now;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private final SparseArray<Bucket>[] stripes = new SparseArray[STRIPES];
+
+    private final boolean enabled;
+    private final QuotaSource quotaSource;
+
+    RateLimiter(boolean enabled, QuotaSource quotaSource) {
+        this.enabled = enabled;
+        this.quotaSource = quotaSource;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new SparseArray<>();
+        }
+    }
+
+    private static long getRate(int quota, int kind) {
+        switch (quota) {
+            case Config.QUOTA_LOW:
+                return Math.max(1, RATES[kind] / 4);
+            case Config.QUOTA_HIGH:
+                return RATES[kind] * 4L;
+            default:
+                return RATES[kind];
+        }
+    }
+
+    private static long getBurst(int quota, int kind) {
+        switch (quota) {
+            case Config.QUOTA_LOW:
+                return Math.max(1, BURSTS[kind] / 4);
+            case Config.QUOTA_HIGH:
+                return BURSTS[kind] * 4L;
+            default:
+                return BURSTS[kind];
+        }
+    }
+
+    private static int getConfiguredQuota(int uid) {
+        Config.PackageEntry entry = ConfigManager.getInstance().find(uid);
+        return entry != null ? entry.getQuota() : Config.QUOTA_DEFAULT;
+    }
+
+    private SparseArray<Bucket> getStripe(int uid) {
+        return stripes[(uid & 0x7fffffff) % STRIPES];
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean tryAcquire(int uid, int kind) {
+        return tryAcquire(uid, kind, 1);
+    }
+
+    /**
+     * Takes tokens from the uid's bucket of the given kind.
+     *
+     * @return false if the uid is over its rate, no token is taken then
+     */
+    public boolean tryAcquire(int uid, int kind, int count) {
+        if (!enabled) {
+            return true;
+        }
+
+        long now = SystemClock.elapsedRealtimeNanos();
+        SparseArray<Bucket> stripe = getStripe(uid);
+        synchronized (stripe) {
+            Bucket bucket = stripe.get(uid);
+            if (bucket != null) {
+                return takeLocked(bucket, kind, count, now);
+            }
+        }
+
+        // read outside the stripe lock, ConfigManager has its own
+        Bucket created = new Bucket(quotaSource.getQuota(uid), now);
+        synchronized (stripe) {
+            Bucket bucket = stripe.get(uid);
+            if (bucket == null) {
+                bucket = created;
+                stripe.put(uid, bucket);
+            }
+            return takeLocked(bucket, kind, count, now);
+        }
+    }
+
+    private static boolean takeLocked(Bucket bucket, int kind, int count, long now) {
+        if (bucket.quota == Config.QUOTA_UNLIMITED) {
+            return true;
+        }
+
+        long elapsed = Math.min(now - bucket.lastRefill[kind], MAX_REFILL_NANOS);
+        if (elapsed > 0) {
+            long max = getBurst(bucket.quota, kind) * SCALE;
+            long refill = elapsed * getRate(bucket.quota, kind) * SCALE / 1000000000L;
+            bucket.tokens[kind] = Math.min(max, bucket.tokens[kind] + refill);
+            // only move on when something was added, otherwise very frequent calls would never refill
+            if (refill > 0) {
+                bucket.lastRefill[kind] = now;
+            }
+        }
+
+        if (bucket.tokens[kind] < count * SCALE) {
+            return false;
+        }
+        bucket.tokens[kind] -= count * SCALE;
+        return true;
+    }
+
+    /**
+     * @return weight of the uid in {@link FairQueue}
+     */
+    public int getWeight(int uid) {
+        switch (quotaSource.getQuota(uid)) {
+            case Config.QUOTA_LOW:
+                return 1;
+            case Config.QUOTA_HIGH:
+                return 4;
+            case Config.QUOTA_UNLIMITED:
+                return 8;
+            default:
+                return 2;
+        }
+    }
+
+    /**
+     * Replaces the bucket of the uid with a full one for its quota, to be called after the new quota is saved.
+     * <p>
+     * A call which read the old quota before it was saved finds this bucket when it goes to put its own, or
+     * has its bucket replaced, so the old quota is never left behind.
+     */
+    public void invalidate(int uid) {
+        if (!enabled) {
+            return;
+        }
+
+        Bucket bucket = new Bucket(quotaSource.getQuota(uid), SystemClock.elapsedRealtimeNanos());
+        SparseArray<Bucket> stripe = getStripe(uid);
+        synchronized (stripe) {
+            stripe.put(uid, bucket);
+        }
+    }
+}
@@ -1,11 +1,48 @@
 package moe.shizuku.server;
 
+import android.os.IBinder;
+
 public class ServerConstants {
 
     public static final int MANAGER_APP_NOT_FOUND = 50;
     public static final int PERMISSION_NOT_GRANTED = 51;
 
     public static final String PERMISSION = "moe.shizuku.manager.permission.API_V23";
+    public static final String PERMISSION_MANAGER = "moe.shizuku.manager.permission.MANAGER";
     public static final String MANAGER_APPLICATION_ID = "moe.shizuku.privileged.api";
     public static final String REQUEST_PERMISSION_ACTION = MANAGER_APPLICATION_ID + ".intent.action.REQUEST_PERMISSION";
+
+    /**
+     * Batched form of BINDER_TRANSACTION_transact, all items are sent with the calling identity cleared once.
+     * <p>
+     * Data: interface token, int count, then for each item: strong binder target, int code, int flags,
+     * int size, size bytes of marshalled data.
+     * <p>
+     * Reply: int count, then for each item: int status, followed by int size and size bytes of the marshalled
+     * reply for {@link #BATCH_ITEM_OK} and {@link #BATCH_ITEM_UNKNOWN_TRANSACTION}, or a string describing
+     * the exception for {@link #BATCH_ITEM_EXCEPTION}.
+     */
+    public static final int BINDER_TRANSACTION_transactBatch = IBinder.LAST_CALL_TRANSACTION - 1;
+
+    public static final int BATCH_ITEM_OK = 0;
+    public static final int BATCH_ITEM_UNKNOWN_TRANSACTION = 1;
+    public static final int BATCH_ITEM_EXCEPTION = 2;
+
+    /**
+     * Manager only. Data: interface token. Reply: exception header, then a string with the same content as
+     * the binder dump, see {@link Metrics}.
+     */
+    public static final int BINDER_TRANSACTION_getMetrics = IBinder.LAST_CALL_TRANSACTION - 2;
+
+    /**
+     * Manager only, getFlagsForUid for many uids. Data: interface token, int array of uids, int mask.
+     * Reply: exception header, then an int array with the flags of each uid.
+     */
+    public static final int BINDER_TRANSACTION_getFlagsForUids = IBinder.LAST_CALL_TRANSACTION - 3;
+
+    /**
+     * Manager only, updateFlagsForUid for many uids with the same mask and value, saved with one config write.
+     * Data: interface token, int array of uids, int mask, int value. Reply: exception header.
+     */
+    public static final int BINDER_TRANSACTION_updateFlagsForUids = IBinder.LAST_CALL_TRANSACTION - 4;
 }
@@ -17,14 +17,19 @@ import android.os.Parcel;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
 import android.os.SELinux;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.system.Os;
-import android.util.ArrayMap;
+import android.util.Log;
 
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.lang.reflect.Constructor;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -32,19 +37,23 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
 import dalvik.system.PathClassLoader;
-import kotlin.collections.ArraysKt;
 import moe.shizuku.api.BinderContainer;
 import rikka.shizuku.ShizukuApiConstants;
 import moe.shizuku.server.api.RemoteProcessHolder;
 import moe.shizuku.server.api.SystemService;
 import moe.shizuku.server.config.Config;
 import moe.shizuku.server.config.ConfigManager;
+import moe.shizuku.server.ktx.HandlerKt;
 import moe.shizuku.server.ktx.IContentProviderKt;
+import moe.shizuku.server.utils.BinderDescriptors;
+import moe.shizuku.server.utils.Logger;
 import moe.shizuku.server.utils.OsUtils;
+import moe.shizuku.server.utils.ProcUtils;
 import moe.shizuku.server.utils.UserHandleCompat;
 
 import static moe.shizuku.server.ServerConstants.MANAGER_APPLICATION_ID;
@@ -89,6 +98,49 @@ public class ShizukuService extends IShizukuService.Stub {
 
     private static final String USER_SERVICE_CMD_DEBUG;
 
+    private static final int USER_SERVICE_SPAWN_THREADS = 4;
+
+    // a standalone user service which has not sent its binder back in time is killed and removed
+    private static final long USER_SERVICE_SPAWN_TIMEOUT = 30 * 1000;
+
+    /**
+     * Keep one app_process with the starter loaded and system services looked up waiting in the background,
+     * a standalone user service then only needs to load its own apk. Not used for debuggable services, the
+     * runtime options of those are decided when the VM starts.
+     */
+    private static final boolean USER_SERVICE_STANDBY = getUserServiceStandby();
+
+    private static boolean getUserServiceStandby() {
+        try {
+            return SystemProperties.getBoolean("persist.shizuku.user_service.standby", false);
+        } catch (Throwable tr) {
+            return false;
+        }
+    }
+
+    /*
+     A standalone user service which no app is connected to is idle. Idle services are stopped after
+     USER_SERVICE_IDLE_TIMEOUT, least recently used first when more than USER_SERVICE_MAX_RESIDENT services
+     are running, and all at once when memory is low if persist.shizuku.user_service.trim_on_low_memory is set.
+     The next addUserService starts the service again.
+     */
+    private static final long USER_SERVICE_IDLE_TIMEOUT = 10 * 60 * 1000;
+    private static final long USER_SERVICE_TRIM_INTERVAL = 60 * 1000;
+    private static final int USER_SERVICE_MAX_RESIDENT = 8;
+
+    // trim when MemAvailable drops below 1/USER_SERVICE_LOW_MEMORY_DIVISOR of MemTotal
+    private static final int USER_SERVICE_LOW_MEMORY_DIVISOR = 10;
+
+    private static final boolean USER_SERVICE_TRIM_ON_LOW_MEMORY = getUserServiceTrimOnLowMemory();
+
+    private static boolean getUserServiceTrimOnLowMemory() {
+        try {
+            return SystemProperties.getBoolean("persist.shizuku.user_service.trim_on_low_memory", false);
+        } catch (Throwable tr) {
+            return false;
+        }
+    }
+
     static {
         int sdk = Build.VERSION.SDK_INT;
         if (sdk >= 30) {
@@ -108,19 +160,46 @@ public class ShizukuService extends IShizukuService.Stub {
     @SuppressWarnings({"FieldCanBeLocal"})
     private final Handler mainHandler = new Handler(Looper.myLooper());
     //private final Context systemContext = HiddenApiBridge.getSystemContext();
-    private final Executor executor = Executors.newSingleThreadExecutor();
-    private final Map<String, UserServiceRecord> userServiceRecords = Collections.synchronizedMap(new ArrayMap<>());
+    // how many user services start at once is bounded by spawnQueue
+    private final Executor executor = Executors.newCachedThreadPool();
+    private final FairQueue spawnQueue = new FairQueue(USER_SERVICE_SPAWN_THREADS);
+    private final Map<String, UserServiceRecord> userServiceRecords = new ConcurrentHashMap<>();
+    private final Map<String, UserServiceRecord> userServiceRecordsByToken = new ConcurrentHashMap<>();
+
+    /*
+     User service records are guarded by a lock picked by the hash of their key, so that services of
+     different apps can be added, attached and removed at the same time.
+     */
+    private final Object[] userServiceLocks = new Object[16];
     private final ClientManager clientManager;
     private final ConfigManager configManager;
+    private final PermissionCache permissionCache;
+    private final TransactionCache transactionCache;
+    private final Metrics metrics;
+    private final RateLimiter rateLimiter;
+    private final PackageIndex packageIndex;
     private final int managerUid;
+    private final Object standbyProcessLock = new Object();
+    private java.lang.Process standbyProcess;
+    private final Runnable trimUserServicesRunner = this::trimUserServices;
 
     ShizukuService(ApplicationInfo ai) {
         super();
 
         managerUid = ai.uid;
 
+        for (int i = 0; i < userServiceLocks.length; i++) {
+            userServiceLocks[i] = new Object();
+        }
+
         configManager = ConfigManager.getInstance();
         clientManager = ClientManager.getInstance();
+        permissionCache = PermissionCache.getInstance();
+        transactionCache = TransactionCache.getInstance();
+        metrics = Metrics.getInstance();
+        rateLimiter = RateLimiter.getInstance();
+        packageIndex = PackageIndex.getInstance();
+        packageIndex.addOnChangedListener(this::onPackagesChanged);
 
         ApkChangedObservers.start(ai.sourceDir, () -> {
             if (getManagerApplicationInfo() == null) {
@@ -132,9 +211,13 @@ public class ShizukuService extends IShizukuService.Stub {
         BinderSender.register(this);
 
         mainHandler.post(() -> {
-            sendBinderToClient();
+            ClientList clients = ClientList.load();
+            HandlerKt.getWorkerHandler().post(() -> configManager.reconcile(clients, this::onPermissionReconciled));
+            sendBinderToClient(clients);
             sendBinderToManager();
         });
+
+        mainHandler.postDelayed(trimUserServicesRunner, USER_SERVICE_TRIM_INTERVAL);
     }
 
     private int checkCallingPermission(String permission) {
@@ -171,13 +254,21 @@ public class ShizukuService extends IShizukuService.Stub {
             return;
         }
 
+        if (permissionCache.isGranted(callingUid, callingPid)) {
+            return;
+        }
+
+        int generation = permissionCache.getGeneration();
         ClientRecord clientRecord = clientManager.findClient(callingUid, callingPid);
         if (clientRecord != null && clientRecord.allowed) {
+            permissionCache.putGranted(callingUid, callingPid, generation);
             return;
         }
 
-        if (clientRecord == null && checkCallingPermission(PERMISSION) == PackageManager.PERMISSION_GRANTED)
+        if (clientRecord == null && checkCallingPermission(PERMISSION) == PackageManager.PERMISSION_GRANTED) {
+            permissionCache.putGranted(callingUid, callingPid, generation);
             return;
+        }
 
         String msg = "Permission Denial: " + func + " from pid="
                 + Binder.getCallingPid()
@@ -186,6 +277,32 @@ public class ShizukuService extends IShizukuService.Stub {
         throw new SecurityException(msg);
     }
 
+    private void enforceRateLimit(String func, int kind, int count) {
+        int callingUid = Binder.getCallingUid();
+        if (callingUid == OsUtils.getUid() || callingUid == managerUid) {
+            return;
+        }
+
+        if (!rateLimiter.tryAcquire(callingUid, kind, count)) {
+            metrics.onThrottled(callingUid, kind);
+            String msg = "Rate limited: " + func + " from uid=" + callingUid + ", try again later";
+            LOGGER.w(msg);
+            throw new IllegalStateException(msg);
+        }
+    }
+
+    /**
+     * Waits for the uid's turn to start a user service process, must be followed by spawnQueue.release().
+     * Only called from the executor, never on a binder thread.
+     */
+    private void acquireSpawnQueue(int uid) {
+        try {
+            metrics.recordSpawnQueueWait(spawnQueue.acquire(uid, rateLimiter.getWeight(uid)));
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     private ClientRecord requireClient(int callingUid, int callingPid) {
         ClientRecord clientRecord = clientManager.findClient(callingUid, callingPid);
         if (clientRecord == null) {
@@ -197,24 +314,138 @@ public class ShizukuService extends IShizukuService.Stub {
 
     private void transactRemote(Parcel data, Parcel reply, int flags) throws RemoteException {
         enforceCallingPermission("transactRemote");
+        enforceRateLimit("transactRemote", RateLimiter.KIND_TRANSACT, 1);
 
         IBinder targetBinder = data.readStrongBinder();
         int targetCode = data.readInt();
 
-        LOGGER.d("transact: uid=%d, descriptor=%s, code=%d", Binder.getCallingUid(), targetBinder.getInterfaceDescriptor(), targetCode);
+        // getInterfaceDescriptor() is a binder call itself, only pay for it when the line is actually logged
+        if (LOGGER.isLoggable(Log.DEBUG)) {
+            LOGGER.d("transact: uid=%d, descriptor=%s, code=%d", Binder.getCallingUid(), BinderDescriptors.get(targetBinder), targetCode);
+        }
+
+        /*
+         The payload has to be moved into a new Parcel because transact() always sends a Parcel from offset 0,
+         while our own header (interface token, target binder, code) sits in front of it in "data".
+
+         Parcel.obtain() is served from the framework's own Parcel pool, so only the payload bytes are copied here.
+         */
         Parcel newData = Parcel.obtain();
         try {
-            newData.appendFrom(data, data.dataPosition(), data.dataAvail());
+            int size = data.dataAvail();
+            if (size > 0) {
+                newData.appendFrom(data, data.dataPosition(), size);
+            }
         } catch (Throwable tr) {
             LOGGER.w(tr, "appendFrom");
+            newData.recycle();
             return;
         }
+
+        TransactionCache.Service cacheService = null;
+        byte[] request = null;
+        int cacheGeneration = 0;
+        if (reply != null && transactionCache.isEnabled()) {
+            cacheService = transactionCache.getCacheableService(targetBinder, targetCode, flags);
+            if (cacheService != null) {
+                request = TransactionCache.marshallRequest(newData, cacheService.descriptor);
+                if (request != null && transactionCache.get(targetBinder, targetCode, request, reply)) {
+                    newData.recycle();
+                    return;
+                }
+                cacheGeneration = transactionCache.getGeneration();
+            }
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        boolean error = true;
+        long id = Binder.clearCallingIdentity();
         try {
-            long id = Binder.clearCallingIdentity();
-            targetBinder.transact(targetCode, newData, reply, flags);
-            Binder.restoreCallingIdentity(id);
+            if (targetBinder.transact(targetCode, newData, reply, flags) && request != null) {
+                transactionCache.put(targetBinder, targetCode, request, reply, cacheGeneration);
+            }
+            error = false;
         } finally {
+            Binder.restoreCallingIdentity(id);
             newData.recycle();
+            metrics.recordRemoteCall(targetBinder, targetCode, SystemClock.elapsedRealtimeNanos() - start, error);
+        }
+    }
+
+    /**
+     * Runs several transactions for the caller in one call. See
+     * {@link ServerConstants#BINDER_TRANSACTION_transactBatch} for the layout of data and reply.
+     */
+    private void transactRemoteBatch(Parcel data, Parcel reply) throws RemoteException {
+        enforceCallingPermission("transactRemoteBatch");
+
+        int count = data.readInt();
+        if (count < 0) {
+            throw new IllegalArgumentException("negative count " + count);
+        }
+        enforceRateLimit("transactRemoteBatch", RateLimiter.KIND_TRANSACT, count);
+
+        if (LOGGER.isLoggable(Log.DEBUG)) {
+            LOGGER.d("transactBatch: uid=%d, count=%d", Binder.getCallingUid(), count);
+        }
+
+        if (reply != null) {
+            reply.writeInt(count);
+        }
+
+        Parcel itemData = Parcel.obtain();
+        Parcel itemReply = Parcel.obtain();
+        long id = Binder.clearCallingIdentity();
+        try {
+            for (int i = 0; i < count; i++) {
+                IBinder targetBinder = data.readStrongBinder();
+                int targetCode = data.readInt();
+                int targetFlags = data.readInt();
+                int size = data.readInt();
+                int position = data.dataPosition();
+                if (size < 0 || size > data.dataAvail()) {
+                    throw new IllegalArgumentException("bad size " + size + " for item " + i);
+                }
+
+                itemData.setDataSize(0);
+                itemReply.setDataSize(0);
+
+                int status;
+                String message = null;
+                try {
+                    if (targetBinder == null) {
+                        throw new NullPointerException("target binder is null");
+                    }
+                    if (size > 0) {
+                        itemData.appendFrom(data, position, size);
+                    }
+                    boolean oneway = (targetFlags & IBinder.FLAG_ONEWAY) != 0;
+                    status = targetBinder.transact(targetCode, itemData, oneway ? null : itemReply, targetFlags)
+                            ? ServerConstants.BATCH_ITEM_OK : ServerConstants.BATCH_ITEM_UNKNOWN_TRANSACTION;
+                } catch (Throwable tr) {
+                    // one failed item must not fail the others
+                    status = ServerConstants.BATCH_ITEM_EXCEPTION;
+                    message = tr.toString();
+                }
+                data.setDataPosition(position + size);
+
+                if (reply != null) {
+                    reply.writeInt(status);
+                    if (status == ServerConstants.BATCH_ITEM_EXCEPTION) {
+                        reply.writeString(message);
+                    } else {
+                        int replySize = itemReply.dataSize();
+                        reply.writeInt(replySize);
+                        if (replySize > 0) {
+                            reply.appendFrom(itemReply, 0, replySize);
+                        }
+                    }
+                }
+            }
+        } finally {
+            Binder.restoreCallingIdentity(id);
+            itemData.recycle();
+            itemReply.recycle();
         }
     }
 
@@ -246,20 +477,39 @@ public class ShizukuService extends IShizukuService.Stub {
     @Override
     public IRemoteProcess newProcess(String[] cmd, String[] env, String dir) throws RemoteException {
         enforceCallingPermission("newProcess");
+        enforceRateLimit("newProcess", RateLimiter.KIND_SPAWN, 1);
 
-        LOGGER.d("newProcess: uid=%d, cmd=%s, env=%s, dir=%s", Binder.getCallingUid(), Arrays.toString(cmd), Arrays.toString(env), dir);
-
-        java.lang.Process process;
-        try {
-            process = Runtime.getRuntime().exec(cmd, env, dir != null ? new File(dir) : null);
-        } catch (IOException e) {
-            throw new RemoteException(e.getMessage());
+        if (LOGGER.isLoggable(Log.DEBUG)) {
+            LOGGER.d("newProcess: uid=%d, cmd=%s, env=%s, dir=%s", Binder.getCallingUid(), Arrays.toString(cmd), Arrays.toString(env), dir);
         }
 
         ClientRecord clientRecord = clientManager.findClient(Binder.getCallingUid(), Binder.getCallingPid());
         IBinder token = clientRecord != null ? clientRecord.client.asBinder() : null;
 
-        return new RemoteProcessHolder(process, token);
+        // a binder thread must not wait here, a burst from one client could take all of them
+        boolean queued = false;
+        int callingUid = Binder.getCallingUid();
+        if (rateLimiter.isEnabled() && callingUid != OsUtils.getUid() && callingUid != managerUid) {
+            if (!spawnQueue.tryAcquire(callingUid, rateLimiter.getWeight(callingUid))) {
+                metrics.onThrottled(callingUid, RateLimiter.KIND_SPAWN);
+                String msg = "Rate limited: newProcess from uid=" + callingUid + ", too many processes starting, try again later";
+                LOGGER.w(msg);
+                throw new IllegalStateException(msg);
+            }
+            queued = true;
+        }
+
+        try {
+            RemoteProcessHolder process = RemoteProcessHolder.start(cmd, env, dir, token);
+            metrics.onProcessStarted();
+            return process;
+        } catch (IOException e) {
+            throw new RemoteException(e.getMessage());
+        } finally {
+            if (queued) {
+                spawnQueue.release();
+            }
+        }
     }
 
     @Override
@@ -293,19 +543,35 @@ public class ShizukuService extends IShizukuService.Stub {
         } catch (Throwable tr) {
             throw new RemoteException(tr.getMessage());
         }
+
+        if (Logger.LEVEL_PROPERTY.equals(name)) {
+            LOGGER.reloadLevel();
+        }
     }
 
     private class UserServiceRecord {
 
         private final DeathRecipient deathRecipient;
+        public final String key;
         public final boolean standalone;
         public final int versionCode;
-        public String token;
-        public IBinder service;
+        public final String token;
+        public volatile IBinder service;
+        public volatile java.lang.Process process;
+        public long spawnTime;
+        public volatile long lastActiveTime = SystemClock.elapsedRealtime();
         public final ApkChangedObserver apkChangedObserver;
-        public final RemoteCallbackList<IShizukuServiceConnection> callbacks = new RemoteCallbackList<>();
+        public final RemoteCallbackList<IShizukuServiceConnection> callbacks = new RemoteCallbackList<IShizukuServiceConnection>() {
+
+            @Override
+            public void onCallbackDied(IShizukuServiceConnection callback) {
+                // the idle time starts when the last app goes away
+                lastActiveTime = SystemClock.elapsedRealtime();
+            }
+        };
 
-        public UserServiceRecord(boolean standalone, int versionCode, String apkPath) {
+        public UserServiceRecord(String key, boolean standalone, int versionCode, String apkPath) {
+            this.key = key;
             this.standalone = standalone;
             this.versionCode = versionCode;
             this.token = UUID.randomUUID().toString() + "-" + System.currentTimeMillis();
@@ -320,7 +586,12 @@ public class ShizukuService extends IShizukuService.Stub {
         }
 
         public void setBinder(IBinder binder) {
-            LOGGER.v("binder received for service record %s", token);
+            if (spawnTime != 0) {
+                LOGGER.i("binder received for service record %s, %dms after spawn", token, SystemClock.elapsedRealtime() - spawnTime);
+                spawnTime = 0;
+            } else {
+                LOGGER.v("binder received for service record %s", token);
+            }
 
             service = binder;
 
@@ -363,15 +634,27 @@ public class ShizukuService extends IShizukuService.Stub {
             callbacks.finishBroadcast();
         }
 
+        /**
+         * Only standalone services are stopped when idle, a local service lives in the server process.
+         */
+        public boolean isIdle() {
+            return standalone && service != null && callbacks.getRegisteredCallbackCount() == 0;
+        }
+
         private void removeSelf() {
-            synchronized (ShizukuService.this) {
+            synchronized (getUserServiceLock(key)) {
                 removeUserServiceLocked(UserServiceRecord.this);
             }
         }
 
         public void destroy() {
             if (standalone) {
-                service.unlinkToDeath(deathRecipient, 0);
+                if (service != null) {
+                    service.unlinkToDeath(deathRecipient, 0);
+                } else if (process != null) {
+                    // removed before it connected (timed out or cancelled), nobody else will stop it
+                    process.destroy();
+                }
             } else {
                 broadcastBinderDead();
             }
@@ -424,7 +707,7 @@ public class ShizukuService extends IShizukuService.Stub {
         String tag = options.getString(USER_SERVICE_ARG_TAG);
         String key = packageName + ":" + (tag != null ? tag : className);
 
-        synchronized (this) {
+        synchronized (getUserServiceLock(key)) {
             UserServiceRecord record = getUserServiceRecordLocked(key);
             if (record == null) return 1;
             removeUserServiceLocked(record);
@@ -432,8 +715,13 @@ public class ShizukuService extends IShizukuService.Stub {
         return 0;
     }
 
+    private Object getUserServiceLock(String key) {
+        return userServiceLocks[(key.hashCode() & 0x7fffffff) % userServiceLocks.length];
+    }
+
     private void removeUserServiceLocked(UserServiceRecord record) {
-        if (userServiceRecords.values().remove(record)) {
+        if (userServiceRecords.remove(record.key, record)) {
+            userServiceRecordsByToken.remove(record.token, record);
             record.destroy();
         }
     }
@@ -464,21 +752,37 @@ public class ShizukuService extends IShizukuService.Stub {
         boolean standalone = processNameSuffix != null;
         String key = packageName + ":" + (tag != null ? tag : className);
 
-        synchronized (this) {
+        synchronized (getUserServiceLock(key)) {
             UserServiceRecord record = getOrCreateUserServiceRecordLocked(key, versionCode, standalone, sourceDir);
             record.callbacks.register(conn);
+            record.lastActiveTime = SystemClock.elapsedRealtime();
 
             if (record.service != null && record.service.pingBinder()) {
                 record.broadcastBinderReceived();
             } else {
                 Runnable runnable;
                 if (standalone) {
-                    runnable = () -> startUserServiceNewProcess(key, record.token, packageName, className, processNameSuffix, uid, debug);
+                    if (uid != managerUid && !rateLimiter.tryAcquire(uid, RateLimiter.KIND_SPAWN)) {
+                        metrics.onThrottled(uid, RateLimiter.KIND_SPAWN);
+                        removeUserServiceLocked(record);
+                        String msg = "Rate limited: addUserService from uid=" + uid + ", try again later";
+                        LOGGER.w(msg);
+                        throw new IllegalStateException(msg);
+                    }
+
+                    runnable = () -> {
+                        acquireSpawnQueue(uid);
+                        try {
+                            startUserServiceNewProcess(key, record.token, packageName, className, processNameSuffix, uid, debug);
+                        } finally {
+                            spawnQueue.release();
+                        }
+                    };
                 } else {
                     runnable = () -> {
                         /*CancellationSignal cancellationSignal = new CancellationSignal();
                         cancellationSignal.setOnCancelListener(() -> {
-                            synchronized (ShizukuService.this) {
+                            synchronized (getUserServiceLock(key)) {
                                 UserServiceRecord r = getUserServiceRecordLocked(key);
                                 if (r != null) {
                                     removeUserServiceLocked(r);
@@ -517,8 +821,9 @@ public class ShizukuService extends IShizukuService.Stub {
             removeUserServiceLocked(record);
         }
 
-        record = new UserServiceRecord(standalone, versionCode, apkPath);
+        record = new UserServiceRecord(key, standalone, versionCode, apkPath);
         userServiceRecords.put(key, record);
+        userServiceRecordsByToken.put(record.token, record);
         LOGGER.i("new service record %s (%s): version=%d, standalone=%s, apk=%s", key, record.token, versionCode, Boolean.toString(standalone), apkPath);
         return record;
     }
@@ -552,36 +857,238 @@ public class ShizukuService extends IShizukuService.Stub {
         record.setBinder(service);
     }
 
-    private static final String USER_SERVICE_CMD_FORMAT = "(CLASSPATH=/data/local/tmp/shizuku/starter-v%d.dex /system/bin/app_process%s /system/bin " +
-            "--nice-name=%s %s " +
-            "--token=%s --package=%s --class=%s --uid=%d%s)&";
+    private static final String USER_SERVICE_CLASSPATH = "/data/local/tmp/shizuku/starter-v%d.dex";
 
     private void startUserServiceNewProcess(String key, String token, String packageName, String classname, String processNameSuffix, int callingUid, boolean debug) {
+        UserServiceRecord record;
+        synchronized (getUserServiceLock(key)) {
+            record = getUserServiceRecordLocked(key);
+            if (record == null || !Objects.equals(token, record.token)) {
+                LOGGER.v("service record %s (%s) is removed before its process is started", key, token);
+                return;
+            }
+        }
+
         LOGGER.v("starting process for service record %s (%s)...", key, token);
 
         String processName = String.format("%s:%s", packageName, processNameSuffix);
-        String cmd = String.format(Locale.ENGLISH, USER_SERVICE_CMD_FORMAT,
-                ShizukuApiConstants.SERVER_VERSION, debug ? (" " + USER_SERVICE_CMD_DEBUG) : "",
-                processName, "moe.shizuku.starter.ServiceStarter",
-                token, packageName, classname, callingUid, debug ? (" " + "--debug-name=" + processName) : "");
 
+        List<String> args = new ArrayList<>();
+        args.add("--token=" + token);
+        args.add("--package=" + packageName);
+        args.add("--class=" + classname);
+        args.add("--uid=" + callingUid);
+        if (debug) {
+            args.add("--debug-name=" + processName);
+        }
+
+        long spawnTime = SystemClock.elapsedRealtime();
+        java.lang.Process process = null;
+        if (USER_SERVICE_STANDBY && !debug) {
+            process = assignStandbyProcess(processName, args);
+            executor.execute(this::prepareStandbyProcess);
+        }
+
+        if (process == null) {
+            // start app_process directly, going through sh costs another fork and exec for each service
+            List<String> cmd = new ArrayList<>();
+            cmd.add("/system/bin/app_process");
+            if (debug) {
+                cmd.addAll(Arrays.asList(USER_SERVICE_CMD_DEBUG.split(" ")));
+            }
+            cmd.add("/system/bin");
+            cmd.add("--nice-name=" + processName);
+            cmd.add("moe.shizuku.starter.ServiceStarter");
+            cmd.addAll(args);
+
+            try {
+                process = startStarterProcess(cmd, true);
+            } catch (Throwable e) {
+                throw new IllegalStateException(e.getMessage());
+            }
+        }
+
+        synchronized (getUserServiceLock(key)) {
+            if (getUserServiceRecordLocked(key) != record) {
+                LOGGER.v("service record %s (%s) is removed while its process is starting", key, token);
+                process.destroy();
+                return;
+            }
+            record.process = process;
+            record.spawnTime = spawnTime;
+        }
+
+        mainHandler.postDelayed(() -> {
+            synchronized (getUserServiceLock(key)) {
+                if (getUserServiceRecordLocked(key) == record && record.service == null) {
+                    LOGGER.w("service record %s (%s) did not receive binder in %dms, removing", key, token, USER_SERVICE_SPAWN_TIMEOUT);
+                    removeUserServiceLocked(record);
+                }
+            }
+        }, USER_SERVICE_SPAWN_TIMEOUT);
+    }
+
+    private static java.lang.Process startStarterProcess(List<String> cmd, boolean closeInput) throws IOException {
+        File devNull = new File("/dev/null");
+        ProcessBuilder builder = new ProcessBuilder(cmd)
+                .redirectOutput(ProcessBuilder.Redirect.to(devNull))
+                .redirectError(ProcessBuilder.Redirect.to(devNull));
+        if (closeInput) {
+            builder.redirectInput(ProcessBuilder.Redirect.from(devNull));
+        }
+        builder.environment().put("CLASSPATH", String.format(Locale.ENGLISH, USER_SERVICE_CLASSPATH, ShizukuApiConstants.SERVER_VERSION));
+        return builder.start();
+    }
+
+    private void prepareStandbyProcess() {
+        synchronized (standbyProcessLock) {
+            if (standbyProcess != null) {
+                return;
+            }
+
+            List<String> cmd = new ArrayList<>();
+            cmd.add("/system/bin/app_process");
+            cmd.add("/system/bin");
+            cmd.add("--nice-name=shizuku_user_service_standby");
+            cmd.add("moe.shizuku.starter.ServiceStarter");
+            cmd.add("--standby");
+
+            try {
+                standbyProcess = startStarterProcess(cmd, false);
+                LOGGER.v("standby process for user service started");
+            } catch (Throwable e) {
+                LOGGER.w(e, "start standby process for user service");
+            }
+        }
+    }
+
+    /**
+     * Hands the service to the standby process.
+     *
+     * @return the process, or null if there is no usable standby process
+     */
+    private java.lang.Process assignStandbyProcess(String processName, List<String> args) {
         java.lang.Process process;
-        int exitCode;
-        try {
-            process = Runtime.getRuntime().exec("sh");
-            OutputStream os = process.getOutputStream();
-            os.write(cmd.getBytes());
-            os.flush();
-            os.close();
+        synchronized (standbyProcessLock) {
+            process = standbyProcess;
+            standbyProcess = null;
+        }
+        if (process == null) {
+            return null;
+        }
 
-            exitCode = process.waitFor();
-        } catch (Throwable e) {
-            throw new IllegalStateException(e.getMessage());
+        // count and then each argument, the process name comes from the client and may contain anything
+        try (DataOutputStream os = new DataOutputStream(process.getOutputStream())) {
+            os.writeInt(args.size() + 1);
+            os.writeUTF("--nice-name=" + processName);
+            for (String arg : args) {
+                os.writeUTF(arg);
+            }
+        } catch (IOException e) {
+            LOGGER.w(e, "standby process for user service is gone");
+            process.destroy();
+            return null;
+        }
+        LOGGER.v("use standby process for %s", processName);
+        return process;
+    }
+
+    private void trimUserServices() {
+        mainHandler.removeCallbacks(trimUserServicesRunner);
+        mainHandler.postDelayed(trimUserServicesRunner, USER_SERVICE_TRIM_INTERVAL);
+
+        int resident = 0;
+        List<UserServiceRecord> idle = new ArrayList<>();
+        for (UserServiceRecord record : userServiceRecords.values()) {
+            if (!record.standalone || record.service == null) continue;
+
+            resident++;
+            if (record.isIdle()) {
+                idle.add(record);
+            }
+        }
+        if (idle.isEmpty()) {
+            return;
+        }
+
+        Collections.sort(idle, (a, b) -> Long.compare(a.lastActiveTime, b.lastActiveTime));
+
+        boolean lowMemory = USER_SERVICE_TRIM_ON_LOW_MEMORY && isLowMemory();
+        int excess = resident - USER_SERVICE_MAX_RESIDENT;
+        long now = SystemClock.elapsedRealtime();
+
+        for (UserServiceRecord record : idle) {
+            String reason;
+            if (lowMemory) {
+                reason = "memory is low";
+            } else if (excess > 0) {
+                reason = "too many services are running";
+            } else if (now - record.lastActiveTime >= USER_SERVICE_IDLE_TIMEOUT) {
+                reason = "it is idle";
+            } else {
+                continue;
+            }
+
+            synchronized (getUserServiceLock(record.key)) {
+                // an app may have connected after the scan
+                if (getUserServiceRecordLocked(record.key) != record || !record.isIdle()) continue;
+
+                LOGGER.i("stop service record %s (%s) because %s", record.key, record.token, reason);
+                removeUserServiceLocked(record);
+            }
+            excess--;
+        }
+    }
+
+    private static boolean isLowMemory() {
+        long total = ProcUtils.getMemTotalKb();
+        long available = ProcUtils.getMemAvailableKb();
+        return total > 0 && available >= 0 && available < total / USER_SERVICE_LOW_MEMORY_DIVISOR;
+    }
+
+    public static class UserServiceStats {
+
+        public int records;
+        public int resident;
+        public int idle;
+        public long rssKb;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH, "records=%d, resident=%d, idle=%d, rss=%dkB", records, resident, idle, rssKb);
+        }
+    }
+
+    public UserServiceStats getUserServiceStats() {
+        UserServiceStats stats = new UserServiceStats();
+        for (UserServiceRecord record : userServiceRecords.values()) {
+            stats.records++;
+            if (!record.standalone || record.service == null) continue;
+
+            stats.resident++;
+            if (record.isIdle()) {
+                stats.idle++;
+            }
+
+            java.lang.Process process = record.process;
+            int pid = process != null ? ProcUtils.getPid(process) : -1;
+            long rss = pid > 0 ? ProcUtils.getRssKb(pid) : -1;
+            if (rss > 0) {
+                stats.rssKb += rss;
+            }
         }
+        return stats;
+    }
 
-        if (exitCode != 0) {
-            throw new IllegalStateException("sh exited with " + exitCode);
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        int callingUid = Binder.getCallingUid();
+        if (callingUid != managerUid && callingUid != OsUtils.getUid() && callingUid != 0 && callingUid != 2000) {
+            pw.println("Permission Denial: can't dump from uid " + callingUid);
+            return;
         }
+
+        metrics.dump(pw, this);
     }
 
     @Override
@@ -591,9 +1098,7 @@ public class ShizukuService extends IShizukuService.Stub {
         Objects.requireNonNull(binder, "binder is null");
         String token = Objects.requireNonNull(options.getString(ShizukuApiConstants.USER_SERVICE_ARG_TOKEN), "token is null");
 
-        synchronized (this) {
-            sendUserServiceLocked(binder, token);
-        }
+        sendUserService(binder, token);
     }
 
     @Override
@@ -607,8 +1112,7 @@ public class ShizukuService extends IShizukuService.Stub {
         boolean isManager;
         ClientRecord clientRecord = null;
 
-        List<String> packages = SystemService.getPackagesForUidNoThrow(callingUid);
-        if (!packages.contains(requestPackageName)) {
+        if (!packageIndex.isPackageOfUid(requestPackageName, callingUid)) {
             LOGGER.w("Request package " + requestPackageName + "does not belong to uid " + callingUid);
             throw new SecurityException("Request package " + requestPackageName + "does not belong to uid " + callingUid);
         }
@@ -623,6 +1127,7 @@ public class ShizukuService extends IShizukuService.Stub {
                 LOGGER.w("Add client failed");
                 return;
             }
+            ClientList.onClientActive(callingUid, requestPackageName);
         }
 
         LOGGER.d("attachApplication: %s %d %d", requestPackageName, callingUid, callingPid);
@@ -726,7 +1231,7 @@ public class ShizukuService extends IShizukuService.Stub {
 
         List<ClientRecord> records = clientManager.findClients(requestUid);
         if (records.isEmpty()) {
-            LOGGER.w("dispatchPermissionConfirmationResult: no client for uid % was found", requestUid, requestPid);
+            LOGGER.w("dispatchPermissionConfirmationResult: no client for uid %d pid %d was found", requestUid, requestPid);
         } else {
             for (ClientRecord record : records) {
                 record.allowed = allowed;
@@ -743,19 +1248,19 @@ public class ShizukuService extends IShizukuService.Stub {
         if (!onetime && allowed) {
             int userId = UserHandleCompat.getUserId(requestUid);
 
-            for (String packageName : SystemService.getPackagesForUidNoThrow(requestUid)) {
-                PackageInfo pi = SystemService.getPackageInfoNoThrow(packageName, PackageManager.GET_PERMISSIONS, userId);
-                if (pi == null || pi.requestedPermissions == null || !ArraysKt.contains(pi.requestedPermissions, PERMISSION)) {
-                    continue;
-                }
-
+            for (PackageIndex.PackageRecord record : packageIndex.getClientPackagesForUid(requestUid)) {
                 if (allowed) {
-                    SystemService.grantRuntimePermission(packageName, PERMISSION, userId);
+                    SystemService.grantRuntimePermission(record.packageName, PERMISSION, userId);
                 } else {
-                    SystemService.revokeRuntimePermission(packageName, PERMISSION, userId);
+                    SystemService.revokeRuntimePermission(record.packageName, PERMISSION, userId);
                 }
             }
         }
+
+        // after the records, config and runtime permission are changed, so a check or call running meanwhile
+        // can't cache the old verdict again
+        permissionCache.invalidateUid(requestUid);
+        transactionCache.invalidateAll();
     }
 
     @Override
@@ -764,18 +1269,16 @@ public class ShizukuService extends IShizukuService.Stub {
             LOGGER.w("updateFlagsForUid is allowed to be called only from the manager");
             return 0;
         }
+        return getFlagsForUidInternal(uid, mask);
+    }
+
+    private int getFlagsForUidInternal(int uid, int mask) {
         Config.PackageEntry entry = configManager.find(uid);
         if (entry != null) {
             return entry.flags & mask;
         }
 
-        int userId = UserHandleCompat.getUserId(uid);
-        for (String packageName : SystemService.getPackagesForUidNoThrow(uid)) {
-            PackageInfo pi = SystemService.getPackageInfoNoThrow(packageName, PackageManager.GET_PERMISSIONS, userId);
-            if (pi == null || pi.requestedPermissions == null || !ArraysKt.contains(pi.requestedPermissions, PERMISSION)) {
-                continue;
-            }
-
+        if (!packageIndex.getClientPackagesForUid(uid).isEmpty()) {
             try {
                 if (SystemService.checkPermission(PERMISSION, uid) == PackageManager.PERMISSION_GRANTED) {
                     return Config.FLAG_ALLOWED;
@@ -794,88 +1297,178 @@ public class ShizukuService extends IShizukuService.Stub {
             return;
         }
 
+        // saved first, the caches dropped by applyFlagsForUid are filled again from config
+        configManager.update(uid, mask, value);
+        applyFlagsForUid(uid, mask, value);
+        if ((mask & Config.MASK_PERMISSION) != 0) {
+            transactionCache.invalidateAll();
+        }
+    }
+
+    private void getFlagsForUids(Parcel data, Parcel reply) {
+        enforceManager("getFlagsForUids");
+
+        int[] uids = data.createIntArray();
+        int mask = data.readInt();
+        int[] flags = new int[uids != null ? uids.length : 0];
+        for (int i = 0; i < flags.length; i++) {
+            flags[i] = getFlagsForUidInternal(uids[i], mask);
+        }
+
+        if (reply != null) {
+            reply.writeNoException();
+            reply.writeIntArray(flags);
+        }
+    }
+
+    private void updateFlagsForUids(Parcel data, Parcel reply) throws RemoteException {
+        enforceManager("updateFlagsForUids");
+
+        int[] uids = data.createIntArray();
+        int mask = data.readInt();
+        int value = data.readInt();
+        if (uids != null && uids.length > 0) {
+            // saved first, see updateFlagsForUid
+            configManager.update(uids, mask, value);
+            for (int uid : uids) {
+                applyFlagsForUid(uid, mask, value);
+            }
+            if ((mask & Config.MASK_PERMISSION) != 0) {
+                transactionCache.invalidateAll();
+            }
+        }
+
+        if (reply != null) {
+            reply.writeNoException();
+        }
+    }
+
+    /**
+     * Applies new flags to running clients and runtime permissions, the caller saves them to config before.
+     */
+    private void applyFlagsForUid(int uid, int mask, int value) throws RemoteException {
         int userId = UserHandleCompat.getUserId(uid);
 
+        if ((mask & Config.MASK_QUOTA) != 0) {
+            rateLimiter.invalidate(uid);
+        }
+
         if ((mask & Config.MASK_PERMISSION) != 0) {
             boolean allowed = (value & Config.FLAG_ALLOWED) != 0;
             boolean denied = (value & Config.FLAG_DENIED) != 0;
 
-            List<ClientRecord> records = clientManager.findClients(uid);
-            for (ClientRecord record : records) {
-                if (allowed) {
-                    record.allowed = true;
-                } else {
-                    record.allowed = false;
-                    SystemService.forceStopPackageNoThrow(record.packageName, UserHandleCompat.getUserId(record.uid));
-                }
-            }
-
-            for (String packageName : SystemService.getPackagesForUidNoThrow(uid)) {
-                PackageInfo pi = SystemService.getPackageInfoNoThrow(packageName, PackageManager.GET_PERMISSIONS, userId);
-                if (pi == null || pi.requestedPermissions == null || !ArraysKt.contains(pi.requestedPermissions, PERMISSION)) {
-                    continue;
-                }
+            applyPermissionToClients(uid, allowed);
 
+            for (PackageIndex.PackageRecord record : packageIndex.getClientPackagesForUid(uid)) {
                 if (allowed) {
-                    SystemService.grantRuntimePermission(packageName, PERMISSION, userId);
+                    SystemService.grantRuntimePermission(record.packageName, PERMISSION, userId);
                 } else {
-                    SystemService.revokeRuntimePermission(packageName, PERMISSION, userId);
+                    SystemService.revokeRuntimePermission(record.packageName, PERMISSION, userId);
                 }
             }
-        }
 
-        configManager.update(uid, mask, value);
+            // after the records and runtime permission are changed, see dispatchPermissionConfirmationResult
+            permissionCache.invalidateUid(uid);
+        }
     }
 
-    private void sendUserServiceLocked(IBinder binder, String token) {
-        Map.Entry<String, UserServiceRecord> entry = null;
-        for (Map.Entry<String, UserServiceRecord> e : userServiceRecords.entrySet()) {
-            if (e.getValue().token.equals(token)) {
-                entry = e;
-                break;
+    /**
+     * Applies a changed permission to the running clients of the uid, those which lost it are stopped.
+     */
+    private void applyPermissionToClients(int uid, boolean allowed) {
+        for (ClientRecord record : clientManager.findClients(uid)) {
+            record.allowed = allowed;
+            if (!allowed) {
+                SystemService.forceStopPackageNoThrow(record.packageName, UserHandleCompat.getUserId(record.uid));
             }
         }
+    }
+
+    /**
+     * The permission of the uid was changed outside Shizuku while the server was not running, the new verdict
+     * is already saved and the runtime permission is already in that state.
+     */
+    private void onPermissionReconciled(int uid, boolean allowed) {
+        LOGGER.i("permission of uid %d changed to %s outside Shizuku", uid, Boolean.toString(allowed));
+        applyPermissionToClients(uid, allowed);
+        permissionCache.invalidateUid(uid);
+        transactionCache.invalidateAll();
+    }
 
-        if (entry == null) {
+    private void sendUserService(IBinder binder, String token) {
+        UserServiceRecord record = userServiceRecordsByToken.get(token);
+        if (record == null) {
             throw new IllegalArgumentException("unable to find token " + token);
         }
 
-        LOGGER.v("received binder for service record %s", token);
+        synchronized (getUserServiceLock(record.key)) {
+            if (userServiceRecords.get(record.key) != record) {
+                throw new IllegalArgumentException("unable to find token " + token);
+            }
+
+            LOGGER.v("received binder for service record %s", token);
 
-        UserServiceRecord record = entry.getValue();
-        record.setBinder(binder);
+            record.setBinder(binder);
+        }
     }
 
     @Override
     public boolean onTransact(int code, Parcel data, Parcel reply, int flags) throws RemoteException {
         //LOGGER.d("transact: code=%d, calling uid=%d", code, Binder.getCallingUid());
+        long start = SystemClock.elapsedRealtimeNanos();
+        boolean error = true;
+        boolean denied = false;
+        try {
+            boolean result = onTransactInternal(code, data, reply, flags);
+            error = false;
+            return result;
+        } catch (SecurityException e) {
+            denied = true;
+            throw e;
+        } finally {
+            // calls rejected by the permission checks are not counted
+            if (!denied) {
+                metrics.recordCall(code, SystemClock.elapsedRealtimeNanos() - start, error);
+            }
+        }
+    }
+
+    private boolean onTransactInternal(int code, Parcel data, Parcel reply, int flags) throws RemoteException {
         if (code == ShizukuApiConstants.BINDER_TRANSACTION_transact) {
             data.enforceInterface(ShizukuApiConstants.BINDER_DESCRIPTOR);
             transactRemote(data, reply, flags);
             return true;
-        }
-        return super.onTransact(code, data, reply, flags);
-    }
+        } else if (code == ServerConstants.BINDER_TRANSACTION_transactBatch) {
+            data.enforceInterface(ShizukuApiConstants.BINDER_DESCRIPTOR);
+            transactRemoteBatch(data, reply);
+            return true;
+        } else if (code == ServerConstants.BINDER_TRANSACTION_getMetrics) {
+            data.enforceInterface(ShizukuApiConstants.BINDER_DESCRIPTOR);
+            enforceManager("getMetrics");
 
-    void sendBinderToClient() {
-        for (int userId : SystemService.getUserIdsNoThrow()) {
-            sendBinderToClient(this, userId);
+            StringWriter sw = new StringWriter();
+            PrintWriter pw = new PrintWriter(sw);
+            metrics.dump(pw, this);
+            pw.flush();
+            if (reply != null) {
+                reply.writeNoException();
+                reply.writeString(sw.toString());
+            }
+            return true;
+        } else if (code == ServerConstants.BINDER_TRANSACTION_getFlagsForUids) {
+            data.enforceInterface(ShizukuApiConstants.BINDER_DESCRIPTOR);
+            getFlagsForUids(data, reply);
+            return true;
+        } else if (code == ServerConstants.BINDER_TRANSACTION_updateFlagsForUids) {
+            data.enforceInterface(ShizukuApiConstants.BINDER_DESCRIPTOR);
+            updateFlagsForUids(data, reply);
+            return true;
         }
+        return super.onTransact(code, data, reply, flags);
     }
 
-    private static void sendBinderToClient(Binder binder, int userId) {
-        try {
-            for (PackageInfo pi : SystemService.getInstalledPackagesNoThrow(PackageManager.GET_PERMISSIONS, userId)) {
-                if (pi == null || pi.requestedPermissions == null)
-                    continue;
-
-                if (ArraysKt.contains(pi.requestedPermissions, PERMISSION)) {
-                    sendBinderToUserApp(binder, pi.packageName, userId);
-                }
-            }
-        } catch (Throwable tr) {
-            LOGGER.e("exception when call getInstalledPackages", tr);
-        }
+    void sendBinderToClient(ClientList clients) {
+        ClientBinderBroadcaster.broadcast(this, clients);
     }
 
     void sendBinderToManager() {
@@ -941,7 +1534,14 @@ public class ShizukuService extends IShizukuService.Stub {
 
     @Override
     public void dispatchPackageChanged(Intent intent) throws RemoteException {
+        packageIndex.invalidateAll();
+        onPackagesChanged();
+    }
 
+    private void onPackagesChanged() {
+        permissionCache.invalidateAll();
+        transactionCache.invalidateAll();
+        BinderSender.invalidateUidVerdicts();
     }
 
     @Override
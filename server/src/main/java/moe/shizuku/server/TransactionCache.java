@@ -0,0 +1,348 @@
+package moe.shizuku.server;
+
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.ServiceManager;
+import android.os.SystemProperties;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static moe.shizuku.server.utils.Logger.LOGGER;
+
+/**
+ * Caches replies of read-only system service calls proxied by transactRemote, so that many clients asking
+ * the same thing (for example getPackageInfo at boot) do not all reach system_server.
+ * <p>
+ * Opt-in: only methods listed in the {@code persist.shizuku.transact_cache} property are cached, as a comma
+ * separated list of {@code service#method}, such as {@code package#getPackageInfo}. A call is only cached when
+ * its target is the binder registered in service manager under that name, the descriptor a binder reports is
+ * chosen by whoever implements it. Entries are keyed by that binder, code and the request arguments after the
+ * interface token, evicted in LRU order once {@link #MAX_BYTES} is reached, expire after {@link #MAX_AGE} and
+ * are all dropped on package and uid events.
+ * <p>
+ * Like {@link PermissionCache}, a reply is put with the {@link #getGeneration() generation} read before the call
+ * was made, so a reply to a call still running when {@link #invalidateAll()} was called is not kept.
+ */
+public class TransactionCache {
+
+    private static final int MAX_BYTES = 4 * 1024 * 1024;
+    private static final long MAX_AGE = 10 * 1000;
+
+    private static TransactionCache instance;
+
+    public static TransactionCache getInstance() {
+        if (instance == null) {
+            instance = new TransactionCache();
+        }
+        return instance;
+    }
+
+    /**
+     * A system service with cacheable methods.
+     */
+    static class Service {
+
+        final String name;
+        final String descriptor;
+        private final ArraySet<Integer> codes = new ArraySet<>();
+        private volatile IBinder binder;
+
+        Service(String name, IBinder binder, String descriptor) {
+            this.name = name;
+            this.binder = binder;
+            this.descriptor = descriptor;
+        }
+
+        /**
+         * @return true if the binder is the one registered under the name. Service manager is only asked again
+         * after the registered one died, a binder from a client never causes a lookup.
+         */
+        boolean isRegisteredBinder(IBinder target) {
+            IBinder current = binder;
+            if (current == null || !current.isBinderAlive()) {
+                current = ServiceManager.getService(name);
+                binder = current;
+            }
+            return current != null && current == target;
+        }
+    }
+
+    private static class Key {
+
+        // compared by identity, a restarted service is a new binder and never gets the old replies
+        final IBinder binder;
+        final int code;
+        final byte[] request;
+        final int hash;
+
+        Key(IBinder binder, int code, byte[] request) {
+            this.binder = binder;
+            this.code = code;
+            this.request = request;
+            this.hash = 31 * (31 * System.identityHashCode(binder) + code) + Arrays.hashCode(request);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return code == key.code && hash == key.hash && binder == key.binder && Arrays.equals(request, key.request);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static class Entry {
+
+        final byte[] reply;
+        final long time;
+
+        Entry(byte[] reply, long time) {
+            this.reply = reply;
+            this.time = time;
+        }
+    }
+
+    private final Service[] services;
+    private final int[] allowedCodes;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private int bytes;
+    private int generation;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private TransactionCache() {
+        String value;
+        try {
+            value = SystemProperties.get("persist.shizuku.transact_cache", "");
+        } catch (Throwable tr) {
+            value = "";
+        }
+
+        ArrayMap<String, Service> services = new ArrayMap<>();
+        ArraySet<Integer> codes = new ArraySet<>();
+        for (String item : TextUtils.split(value, ",")) {
+            item = item.trim();
+            int index = item.indexOf('#');
+            if (index <= 0) {
+                continue;
+            }
+            String name = item.substring(0, index);
+            String method = item.substring(index + 1);
+            try {
+                Service service = services.get(name);
+                if (service == null) {
+                    IBinder binder = ServiceManager.getService(name);
+                    String descriptor = binder != null ? binder.getInterfaceDescriptor() : null;
+                    if (descriptor == null) {
+                        LOGGER.w("transact cache: service %s not found", name);
+                        continue;
+                    }
+                    service = new Service(name, binder, descriptor);
+                    services.put(name, service);
+                }
+                Field field = Class.forName(service.descriptor + "$Stub").getDeclaredField("TRANSACTION_" + method);
+                field.setAccessible(true);
+                int code = field.getInt(null);
+                service.codes.add(code);
+                codes.add(code);
+                LOGGER.i("transact cache: %s (%s, %d)", item, service.descriptor, code);
+            } catch (Throwable tr) {
+                LOGGER.w("transact cache: unable to resolve " + item);
+            }
+        }
+
+        this.services = services.values().toArray(new Service[0]);
+        allowedCodes = new int[codes.size()];
+        for (int i = 0; i < allowedCodes.length; i++) {
+            allowedCodes[i] = codes.valueAt(i);
+        }
+    }
+
+    public boolean isEnabled() {
+        return allowedCodes.length > 0;
+    }
+
+    /**
+     * @return the service if the target is a registered system service and replies of this call can be
+     * cached, otherwise null
+     */
+    Service getCacheableService(IBinder target, int code, int flags) {
+        if ((flags & IBinder.FLAG_ONEWAY) != 0) {
+            return null;
+        }
+
+        boolean found = false;
+        for (int allowedCode : allowedCodes) {
+            if (allowedCode == code) {
+                found = true;
+                break;
+            }
+        }
+        if (!found) {
+            return null;
+        }
+
+        for (Service service : services) {
+            if (service.codes.contains(code) && service.isRegisteredBinder(target)) {
+                return service;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The strict mode policy and work source written before the interface token differ from caller to caller
+     * (and between calls of one caller) without changing the reply, so they are left out of the key.
+     *
+     * @return marshalled arguments after the interface token, or null if the request contains binders or file
+     * descriptors or does not start with the token of the descriptor
+     */
+    public static byte[] marshallRequest(Parcel data, String descriptor) {
+        byte[] bytes;
+        try {
+            bytes = data.marshall();
+        } catch (Throwable tr) {
+            return null;
+        }
+        int start = findArguments(bytes, descriptor);
+        return start >= 0 ? Arrays.copyOfRange(bytes, start, bytes.length) : null;
+    }
+
+    private static int findArguments(byte[] bytes, String descriptor) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.nativeOrder());
+        int length = descriptor.length();
+        // token is a String16: length, chars with a terminating zero, padded to 4 bytes
+        int tokenSize = 4 + (((length + 1) * 2 + 3) & ~3);
+
+        // before the token: strict mode policy, then work source uid (Q+) and the system header (R+)
+        for (int offset = 4; offset <= 12 && offset + tokenSize <= bytes.length; offset += 4) {
+            if (buffer.getInt(offset) != length) {
+                continue;
+            }
+            boolean match = true;
+            for (int i = 0; i < length; i++) {
+                if (buffer.getChar(offset + 4 + i * 2) != descriptor.charAt(i)) {
+                    match = false;
+                    break;
+                }
+            }
+            if (match) {
+                return offset + tokenSize;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param target a binder {@link #getCacheableService(IBinder, int, int)} accepted
+     */
+    boolean get(IBinder target, int code, byte[] request, Parcel reply) {
+        Key key = new Key(target, code, request);
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry != null && SystemClock.elapsedRealtime() - entry.time > MAX_AGE) {
+                entries.remove(key);
+                bytes -= entry.reply.length + request.length;
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        reply.unmarshall(entry.reply, 0, entry.reply.length);
+        reply.setDataPosition(0);
+        return true;
+    }
+
+    /**
+     * @return the value to pass to {@link #put(IBinder, int, byte[], Parcel, int)}, read before the call is made
+     */
+    int getGeneration() {
+        synchronized (entries) {
+            return generation;
+        }
+    }
+
+    void put(IBinder target, int code, byte[] request, Parcel reply, int generation) {
+        if (reply.dataSize() < 4) {
+            return;
+        }
+
+        // don't remember failures
+        int position = reply.dataPosition();
+        reply.setDataPosition(0);
+        int exceptionCode = reply.readInt();
+        reply.setDataPosition(position);
+        if (exceptionCode != 0) {
+            return;
+        }
+
+        byte[] bytes;
+        try {
+            bytes = reply.marshall();
+        } catch (Throwable tr) {
+            return;
+        }
+        if (bytes.length + request.length > MAX_BYTES / 4) {
+            return;
+        }
+
+        Key key = new Key(target, code, request);
+        synchronized (entries) {
+            if (this.generation != generation) {
+                return;
+            }
+            Entry old = entries.put(key, new Entry(bytes, SystemClock.elapsedRealtime()));
+            if (old != null) {
+                this.bytes -= old.reply.length + request.length;
+            }
+            this.bytes += bytes.length + request.length;
+
+            Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+            while (this.bytes > MAX_BYTES && it.hasNext()) {
+                Map.Entry<Key, Entry> eldest = it.next();
+                this.bytes -= eldest.getValue().reply.length + eldest.getKey().request.length;
+                it.remove();
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        if (!isEnabled()) {
+            return;
+        }
+        synchronized (entries) {
+            entries.clear();
+            bytes = 0;
+            generation++;
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,49 @@
+package moe.shizuku.server.api;
+
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a callback as soon as a process exits.
+ * <p>
+ * Process can't wait for several processes at once below API 26, but a thread parked in
+ * {@link Process#waitFor()} costs no CPU: it waits on a monitor the runtime's own reaper notifies when the
+ * process is reaped, so it wakes right away instead of on the next poll. Each watched process gets such a
+ * waiter from a shared pool, with a small stack, and the thread is reused once its process has exited. Only
+ * processes someone waits for with a timeout, or registered an exit callback for, are watched.
+ */
+class ProcessExitWatcher {
+
+    private static final long STACK_SIZE = 64 * 1024;
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+            30L, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+        Thread thread = new Thread(null, runnable, "RemoteProcess Exit Waiter", STACK_SIZE);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param onExit run on the waiter thread once the process has exited
+     */
+    static void watch(Process process, Runnable onExit) {
+        EXECUTOR.execute(() -> {
+            while (true) {
+                try {
+                    process.waitFor();
+                    break;
+                } catch (InterruptedException ignored) {
+                }
+            }
+            onExit.run();
+        });
+    }
+
+    /**
+     * @return number of processes being waited for
+     */
+    static int getWatchedCount() {
+        return EXECUTOR.getActiveCount();
+    }
+}
@@ -1,10 +1,19 @@
 package moe.shizuku.server.api;
 
 import android.os.IBinder;
+import android.os.Parcel;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
+import android.os.SystemProperties;
+import android.util.ArrayMap;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 import moe.shizuku.server.IRemoteProcess;
@@ -14,12 +23,148 @@ import static moe.shizuku.server.utils.Logger.LOGGER;
 
 public class RemoteProcessHolder extends IRemoteProcess.Stub {
 
+    /**
+     * Start the process with its stdio connected to pipes which are handed to the client as they are, so the
+     * data never passes through the server. Off unless the property is set to true, the default copies
+     * through transfer threads.
+     */
+    private static final boolean DIRECT_STDIO = getDirectStdio();
+
+    private static boolean getDirectStdio() {
+        try {
+            return SystemProperties.getBoolean("persist.shizuku.process.direct_stdio", false);
+        } catch (Throwable tr) {
+            return false;
+        }
+    }
+
+    public static RemoteProcessHolder start(String[] cmd, String[] env, String dir, IBinder token) throws IOException {
+        if (DIRECT_STDIO) {
+            try {
+                return startDirect(cmd, env, dir, token);
+            } catch (IOException e) {
+                LOGGER.w(e, "start process with direct stdio, fallback to transfer threads");
+            }
+        }
+        return new RemoteProcessHolder(Runtime.getRuntime().exec(cmd, env, dir != null ? new File(dir) : null), token);
+    }
+
+    private static RemoteProcessHolder startDirect(String[] cmd, String[] env, String dir, IBinder token) throws IOException {
+        ProcessBuilder builder = new ProcessBuilder(cmd);
+        if (dir != null) {
+            builder.directory(new File(dir));
+        }
+        if (env != null) {
+            Map<String, String> environment = builder.environment();
+            environment.clear();
+            for (String e : env) {
+                int index = e.indexOf('=');
+                if (index != -1) {
+                    environment.put(e.substring(0, index), e.substring(index + 1));
+                }
+            }
+        }
+
+        // [0] is the read side, [1] is the write side
+        ParcelFileDescriptor[] stdin = ParcelFileDescriptor.createPipe();
+        ParcelFileDescriptor[] stdout = ParcelFileDescriptor.createPipe();
+        ParcelFileDescriptor[] stderr = ParcelFileDescriptor.createPipe();
+
+        /*
+         ProcessBuilder can only redirect to files, opening the pipe through /proc/self/fd gives the child
+         another descriptor of the very same pipe.
+         */
+        builder.redirectInput(ProcessBuilder.Redirect.from(fdFile(stdin[0])))
+                .redirectOutput(ProcessBuilder.Redirect.to(fdFile(stdout[1])))
+                .redirectError(ProcessBuilder.Redirect.to(fdFile(stderr[1])));
+
+        Process process;
+        try {
+            process = builder.start();
+        } catch (IOException e) {
+            closeQuietly(stdin[1]);
+            closeQuietly(stdout[0]);
+            closeQuietly(stderr[0]);
+            throw e;
+        } finally {
+            // the child has its own copies now, keeping ours would hide EOF from both sides
+            closeQuietly(stdin[0]);
+            closeQuietly(stdout[1]);
+            closeQuietly(stderr[1]);
+        }
+        return new RemoteProcessHolder(process, token, stdin[1], stdout[0], stderr[0]);
+    }
+
+    private static File fdFile(ParcelFileDescriptor pfd) {
+        return new File("/proc/self/fd/" + pfd.getFd());
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor pfd) {
+        try {
+            pfd.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Registers a binder which receives a oneway {@link #EXIT_CALLBACK_TRANSACTION_onExit} transaction
+     * with the exit value (int) when the process exits, so clients do not need to hold a binder thread in
+     * {@link #waitFor()}. Data: interface token, callback binder. The call itself is oneway.
+     */
+    public static final int TRANSACTION_registerExitCallback = IBinder.LAST_CALL_TRANSACTION - 1;
+
+    public static final int EXIT_CALLBACK_TRANSACTION_onExit = IBinder.FIRST_CALL_TRANSACTION;
+
+    private static final int STDIN = 0;
+    private static final int STDOUT = 1;
+    private static final int STDERR = 2;
+
+    // holders the clients still reference, for the metrics
+    private static final Map<RemoteProcessHolder, Boolean> HOLDERS = new WeakHashMap<>();
+
+    /**
+     * @return number of started processes which have not exited yet
+     */
+    public static int getAliveCount() {
+        List<RemoteProcessHolder> holders;
+        synchronized (HOLDERS) {
+            holders = new ArrayList<>(HOLDERS.keySet());
+        }
+
+        int count = 0;
+        for (RemoteProcessHolder holder : holders) {
+            if (holder.alive()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     private final Process process;
+    private final ParcelFileDescriptor[] directStdio;
     private ParcelFileDescriptor in;
     private ParcelFileDescriptor out;
+    private ParcelFileDescriptor err;
+
+    private final CountDownLatch exited = new CountDownLatch(1);
+    private final Map<IBinder, DeathRecipient> exitCallbacks = new ArrayMap<>();
+    private boolean watching;
 
     public RemoteProcessHolder(Process process, IBinder token) {
+        this(process, token, null);
+    }
+
+    private RemoteProcessHolder(Process process, IBinder token, ParcelFileDescriptor stdin, ParcelFileDescriptor stdout, ParcelFileDescriptor stderr) {
+        this(process, token, new ParcelFileDescriptor[]{stdin, stdout, stderr});
+    }
+
+    private RemoteProcessHolder(Process process, IBinder token, ParcelFileDescriptor[] directStdio) {
         this.process = process;
+        this.directStdio = directStdio;
+
+        synchronized (HOLDERS) {
+            HOLDERS.put(this, Boolean.TRUE);
+        }
 
         if (token != null) {
             try {
@@ -28,6 +173,8 @@ public class RemoteProcessHolder extends IRemoteProcess.Stub {
                         if (alive()) {
                             destroy();
                             LOGGER.i("destroy process because the owner is dead");
+                        } else {
+                            closeDirectStdio();
                         }
                     } catch (Throwable e) {
                         LOGGER.w(e, "failed to destroy process");
@@ -40,8 +187,42 @@ public class RemoteProcessHolder extends IRemoteProcess.Stub {
         }
     }
 
+    /**
+     * Returned descriptors are closed once they are written to the reply, so each direct pipe can be taken once.
+     */
+    private ParcelFileDescriptor takeDirectStdio(int index) {
+        synchronized (directStdio) {
+            ParcelFileDescriptor pfd = directStdio[index];
+            if (pfd == null) {
+                throw new IllegalStateException("stream has already been taken");
+            }
+            directStdio[index] = null;
+            return pfd;
+        }
+    }
+
+    /**
+     * Closes the direct pipe ends the client has not taken, nobody else can use them.
+     */
+    private void closeDirectStdio() {
+        if (directStdio == null) {
+            return;
+        }
+        synchronized (directStdio) {
+            for (int i = 0; i < directStdio.length; i++) {
+                if (directStdio[i] != null) {
+                    closeQuietly(directStdio[i]);
+                    directStdio[i] = null;
+                }
+            }
+        }
+    }
+
     @Override
     public ParcelFileDescriptor getOutputStream() {
+        if (directStdio != null) {
+            return takeDirectStdio(STDIN);
+        }
         if (out == null) {
             try {
                 out = ParcelFileDescriptorUtil.pipeTo(process.getOutputStream());
@@ -54,6 +235,9 @@ public class RemoteProcessHolder extends IRemoteProcess.Stub {
 
     @Override
     public ParcelFileDescriptor getInputStream() {
+        if (directStdio != null) {
+            return takeDirectStdio(STDOUT);
+        }
         if (in == null) {
             try {
                 in = ParcelFileDescriptorUtil.pipeFrom(process.getInputStream());
@@ -66,11 +250,18 @@ public class RemoteProcessHolder extends IRemoteProcess.Stub {
 
     @Override
     public ParcelFileDescriptor getErrorStream() {
-        try {
-            return ParcelFileDescriptorUtil.pipeFrom(process.getErrorStream());
-        } catch (IOException e) {
-            throw new IllegalStateException(e);
+        if (directStdio != null) {
+            return takeDirectStdio(STDERR);
+        }
+        // the stream is closed once its descriptor is taken, like the others it can only be piped once
+        if (err == null) {
+            try {
+                err = ParcelFileDescriptorUtil.pipeFrom(process.getErrorStream());
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
         }
+        return err;
     }
 
     @Override
@@ -90,10 +281,11 @@ public class RemoteProcessHolder extends IRemoteProcess.Stub {
     @Override
     public void destroy() {
         process.destroy();
+        closeDirectStdio();
     }
 
     @Override
-    public boolean alive() throws RemoteException {
+    public boolean alive() {
         try {
             this.exitValue();
             return false;
@@ -105,25 +297,97 @@ public class RemoteProcessHolder extends IRemoteProcess.Stub {
     @Override
     public boolean waitForTimeout(long timeout, String unitName) throws RemoteException {
         TimeUnit unit = TimeUnit.valueOf(unitName);
-        long startTime = System.nanoTime();
-        long rem = unit.toNanos(timeout);
+        if (!alive()) {
+            return true;
+        }
 
-        do {
-            try {
-                exitValue();
-                return true;
-            } catch (IllegalThreadStateException ex) {
-                if (rem > 0) {
-                    try {
-                        Thread.sleep(
-                                Math.min(TimeUnit.NANOSECONDS.toMillis(rem) + 1, 100));
-                    } catch (InterruptedException e) {
-                        throw new IllegalStateException();
-                    }
-                }
+        watchExit();
+        try {
+            return exited.await(timeout, unit);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Hands the process to {@link ProcessExitWatcher} once, waiters and exit callbacks are woken by {@link #onExit()}.
+     */
+    private void watchExit() {
+        synchronized (exitCallbacks) {
+            if (watching) {
+                return;
             }
-            rem = unit.toNanos(timeout) - (System.nanoTime() - startTime);
-        } while (rem > 0);
-        return false;
+            watching = true;
+        }
+        ProcessExitWatcher.watch(process, this::onExit);
+    }
+
+    private void onExit() {
+        int exitValue = process.exitValue();
+
+        Map<IBinder, DeathRecipient> callbacks;
+        synchronized (exitCallbacks) {
+            exited.countDown();
+            callbacks = new ArrayMap<>(exitCallbacks);
+            exitCallbacks.clear();
+        }
+        for (Map.Entry<IBinder, DeathRecipient> entry : callbacks.entrySet()) {
+            entry.getKey().unlinkToDeath(entry.getValue(), 0);
+            dispatchExit(entry.getKey(), exitValue);
+        }
+    }
+
+    private void registerExitCallback(IBinder callback) {
+        // a client that dies before the process exits should not keep its callback here
+        DeathRecipient deathRecipient = () -> {
+            synchronized (exitCallbacks) {
+                exitCallbacks.remove(callback);
+            }
+        };
+        try {
+            callback.linkToDeath(deathRecipient, 0);
+        } catch (RemoteException e) {
+            return;
+        }
+
+        boolean exitedAlready;
+        synchronized (exitCallbacks) {
+            exitedAlready = exited.getCount() == 0;
+            if (!exitedAlready) {
+                exitCallbacks.put(callback, deathRecipient);
+            }
+        }
+
+        if (exitedAlready) {
+            callback.unlinkToDeath(deathRecipient, 0);
+            dispatchExit(callback, process.exitValue());
+        } else {
+            watchExit();
+        }
+    }
+
+    private static void dispatchExit(IBinder callback, int exitValue) {
+        Parcel data = Parcel.obtain();
+        try {
+            data.writeInt(exitValue);
+            callback.transact(EXIT_CALLBACK_TRANSACTION_onExit, data, null, IBinder.FLAG_ONEWAY);
+        } catch (Throwable e) {
+            LOGGER.w(e, "failed to dispatch process exit");
+        } finally {
+            data.recycle();
+        }
+    }
+
+    @Override
+    public boolean onTransact(int code, Parcel data, Parcel reply, int flags) throws RemoteException {
+        if (code == TRANSACTION_registerExitCallback) {
+            data.enforceInterface(getInterfaceDescriptor());
+            IBinder callback = data.readStrongBinder();
+            if (callback != null) {
+                registerExitCallback(callback);
+            }
+            return true;
+        }
+        return super.onTransact(code, data, reply, flags);
     }
 }
@@ -3,50 +3,151 @@ package moe.shizuku.server.api
 import android.os.*
 import moe.shizuku.server.utils.Logger.LOGGER
 import java.io.FileDescriptor
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Binder of a system service which is looked up on first use and again after the service dies.
+ *
+ * Reads of the cached binder take no lock. Only one thread at a time looks the service up, the others wait
+ * for it and use its result, so a death recipient is registered once per binder. While the service can't
+ * be found (system_server restarting), lookups are spaced out with a growing delay, and a transaction that
+ * fails with [DeadObjectException] is retried a few times with backoff.
+ *
+ * [lookup] finds the service by name, it is only replaced in tests.
+ */
+open class SystemServiceBinder<T : IInterface>(
+        val name: String,
+        private val lookup: (name: String) -> IBinder? = ServiceManager::getService,
+        private val converter: (binder: IBinder) -> T) : IBinder {
+
+    companion object {
+
+        private const val MAX_RETRIES = 3
+        private const val MIN_BACKOFF = 50L
+        private const val MAX_BACKOFF = 2000L
+
+        private val all = CopyOnWriteArrayList<SystemServiceBinder<*>>()
+
+        @JvmStatic
+        fun getAll(): List<SystemServiceBinder<*>> = all
+    }
 
-open class SystemServiceBinder<T : IInterface>(val name: String, private val converter: (binder: IBinder) -> T) : IBinder {
-
+    @Volatile
     private var binderCache: IBinder? = null
+
+    @Volatile
     private var serviceCache: T? = null
 
-    private val binder: IBinder?
-        get() = binderCache ?: ServiceManager.getService(name)?.let {
+    private val lock = Any()
+
+    // guarded by lock
+    private var nextLookupTime = 0L
+    private var backoff = 0L
+
+    val resolutions = AtomicLong()
+    val failedResolutions = AtomicLong()
+    val deaths = AtomicLong()
+    val retries = AtomicLong()
+
+    init {
+        all.add(this)
+    }
+
+    private fun onDied(binder: IBinder) {
+        deaths.incrementAndGet()
+        LOGGER.w("service $name is dead")
+
+        synchronized(lock) {
+            // a newer binder may already be in place
+            if (binderCache === binder) {
+                binderCache = null
+            }
+            nextLookupTime = 0
+            backoff = 0
+        }
+    }
+
+    private fun resolve(): IBinder? {
+        binderCache?.let { return it }
+
+        synchronized(lock) {
+            binderCache?.let { return it }
+
+            val now = SystemClock.elapsedRealtime()
+            if (now < nextLookupTime) {
+                return null
+            }
+
+            val binder = lookup(name)
+            if (binder == null) {
+                failedResolutions.incrementAndGet()
+                backoff = if (backoff == 0L) MIN_BACKOFF else (backoff * 2).coerceAtMost(MAX_BACKOFF)
+                nextLookupTime = now + backoff
+                LOGGER.w("service $name not found, next lookup in ${backoff}ms")
+                return null
+            }
+
+            resolutions.incrementAndGet()
+            backoff = 0
+            nextLookupTime = 0
             LOGGER.v("get service $name")
 
             try {
-                it.linkToDeath({
-                    binderCache = null
-                    serviceCache = null
-                }, 0)
+                binder.linkToDeath({ onDied(binder) }, 0)
 
                 // save binder only if linkToDeath succeed
-                binderCache = it
+                binderCache = binder
             } catch (e: Throwable) {
                 LOGGER.w(e, "linkToDeath $name failed")
             }
-            it
+            return binder
         }
+    }
+
+    private val binder: IBinder?
+        get() = resolve()
 
     val service: T?
-        get() = serviceCache ?: binder?.let {
-            serviceCache = converter(this)
-            serviceCache
+        get() {
+            serviceCache?.let { return it }
+            if (binder == null) return null
+
+            // the interface wraps this object rather than the binder, so it stays valid across deaths
+            synchronized(lock) {
+                return serviceCache ?: converter(this).also { serviceCache = it }
+            }
         }
 
+    private fun forget(binder: IBinder) {
+        synchronized(lock) {
+            if (binderCache === binder) {
+                binderCache = null
+            }
+        }
+    }
+
     @Throws(RemoteException::class)
     override fun transact(code: Int, data: Parcel, reply: Parcel?, flags: Int): Boolean {
-        return binder?.let {
+        var attempt = 0
+        while (true) {
+            val binder = binder ?: return false
             try {
-                it.transact(code, data, reply, flags)
+                return binder.transact(code, data, reply, flags)
             } catch (e: DeadObjectException) {
-                LOGGER.w(e, "transact $name $code failed")
-
-                // try again when DeadObjectException
-                binderCache = null
-
-                binder?.transact(code, data, reply, flags)
+                if (attempt >= MAX_RETRIES) {
+                    throw e
+                }
+                LOGGER.w(e, "transact $name $code failed, retrying")
+
+                forget(binder)
+                retries.incrementAndGet()
+                if (attempt > 0) {
+                    SystemClock.sleep(MIN_BACKOFF shl (attempt - 1))
+                }
+                attempt++
             }
-        } ?: false
+        }
     }
 
     @Throws(RemoteException::class)
@@ -84,4 +185,4 @@ open class SystemServiceBinder<T : IInterface>(val name: String, private val con
     override fun unlinkToDeath(recipient: IBinder.DeathRecipient, flags: Int): Boolean {
         return binder?.unlinkToDeath(recipient, flags) ?: false
     }
-}
\ No newline at end of file
+}
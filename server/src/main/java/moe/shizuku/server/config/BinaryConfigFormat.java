@@ -0,0 +1,58 @@
+package moe.shizuku.server.config;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact on-disk form of {@link Config}: a small header followed by fixed-size (uid, flags) records.
+ * Unlike the JSON form it is read without reflection and its size grows linearly with the number of entries.
+ */
+public class BinaryConfigFormat {
+
+    private static final int MAGIC = 0x535a4b43; // "SZKC"
+    private static final int ENTRY_SIZE = 8;
+
+    public static Config read(InputStream in) throws IOException {
+        DataInputStream stream = new DataInputStream(in);
+
+        int magic = stream.readInt();
+        if (magic != MAGIC) {
+            throw new IOException("bad magic " + Integer.toHexString(magic));
+        }
+
+        int version = stream.readInt();
+        int count = stream.readInt();
+        if (count < 0) {
+            throw new IOException("bad entry count " + count);
+        }
+
+        // count comes from the file, do not allocate more than the remaining bytes can hold
+        List<Config.PackageEntry> packages = new ArrayList<>(Math.min(count, stream.available() / ENTRY_SIZE));
+        for (int i = 0; i < count; i++) {
+            int uid = stream.readInt();
+            int flags = stream.readInt();
+            packages.add(new Config.PackageEntry(uid, flags));
+        }
+
+        Config config = new Config(packages);
+        config.version = version;
+        return config;
+    }
+
+    public static void write(OutputStream out, Config config) throws IOException {
+        DataOutputStream stream = new DataOutputStream(out);
+        stream.writeInt(MAGIC);
+        stream.writeInt(config.version);
+        stream.writeInt(config.packages.size());
+        for (Config.PackageEntry entry : config.packages) {
+            stream.writeInt(entry.uid);
+            stream.writeInt(entry.flags);
+        }
+        stream.flush();
+    }
+}
@@ -15,6 +15,16 @@ public class Config {
     public static final int FLAG_DENIED = 1 << 2;
     public static final int MASK_PERMISSION = FLAG_ALLOWED | FLAG_DENIED;
 
+    /*
+     How many calls and process starts a uid gets, see RateLimiter. Kept in flags so that it is saved and
+     journaled like the permission, and set by the manager through updateFlagsForUid.
+     */
+    public static final int QUOTA_DEFAULT = 0;
+    public static final int QUOTA_LOW = 1 << 8;
+    public static final int QUOTA_HIGH = 2 << 8;
+    public static final int QUOTA_UNLIMITED = 3 << 8;
+    public static final int MASK_QUOTA = 0xf << 8;
+
     @SerializedName("version")
     public int version = LATEST_VERSION;
 
@@ -41,6 +51,10 @@ public class Config {
         public boolean isDenied() {
             return (flags & FLAG_DENIED) != 0;
         }
+
+        public int getQuota() {
+            return flags & MASK_QUOTA;
+        }
     }
 
     public Config() {
@@ -0,0 +1,205 @@
+package moe.shizuku.server.config;
+
+import android.util.SparseArray;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import static moe.shizuku.server.utils.Logger.LOGGER;
+
+/**
+ * Append-only log of flag changes, written next to the config snapshot.
+ * <p>
+ * Each change is a fixed-size record (op, uid, flags, crc) synced to disk before the call returns.
+ * Compaction first moves the live journal aside ({@link #rotate()}), writes a snapshot that already contains
+ * every moved record, and then drops the moved journal ({@link #deleteRotated()}). Records are absolute
+ * values, so replaying a record the snapshot already contains is harmless.
+ * <p>
+ * A record cut short by a crash, or one whose crc does not match, ends the replay of that file.
+ */
+public class ConfigJournal {
+
+    private static final int RECORD_SIZE = 16;
+
+    private static final int OP_UPDATE = 1;
+    private static final int OP_REMOVE = 2;
+
+    private final File file;
+    private final File rotatedFile;
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    private final CRC32 crc = new CRC32();
+
+    private FileOutputStream out;
+    private int recordCount;
+
+    public ConfigJournal(File file) {
+        this.file = file;
+        this.rotatedFile = new File(file.getPath() + ".1");
+    }
+
+    /**
+     * Applies the moved journal and then the live journal to the given entries.
+     *
+     * @return number of records applied
+     */
+    public int replay(SparseArray<Config.PackageEntry> entries) {
+        return replay(rotatedFile, entries) + replay(file, entries);
+    }
+
+    private static int replay(File file, SparseArray<Config.PackageEntry> entries) {
+        if (!file.exists()) {
+            return 0;
+        }
+
+        int count = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buf = new byte[RECORD_SIZE];
+            ByteBuffer record = ByteBuffer.wrap(buf);
+            CRC32 crc = new CRC32();
+
+            while (readFully(in, buf)) {
+                record.clear();
+                int op = record.getInt();
+                int uid = record.getInt();
+                int flags = record.getInt();
+                int checksum = record.getInt();
+
+                crc.reset();
+                crc.update(buf, 0, RECORD_SIZE - 4);
+                if ((int) crc.getValue() != checksum) {
+                    LOGGER.w("journal %s: bad record at %d, ignoring the rest", file, count * RECORD_SIZE);
+                    break;
+                }
+
+                if (op == OP_UPDATE) {
+                    Config.PackageEntry entry = entries.get(uid);
+                    if (entry == null) {
+                        entries.put(uid, new Config.PackageEntry(uid, flags));
+                    } else {
+                        entry.flags = flags;
+                    }
+                } else if (op == OP_REMOVE) {
+                    entries.remove(uid);
+                }
+                count++;
+            }
+        } catch (IOException e) {
+            LOGGER.w(e, "replay journal %s", file);
+        }
+        return count;
+    }
+
+    private static boolean readFully(InputStream in, byte[] buf) throws IOException {
+        int offset = 0;
+        while (offset < buf.length) {
+            int n = in.read(buf, offset, buf.length - offset);
+            if (n < 0) {
+                return false;
+            }
+            offset += n;
+        }
+        return true;
+    }
+
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    public boolean hasRotated() {
+        return rotatedFile.exists();
+    }
+
+    public void appendUpdate(int uid, int flags) throws IOException {
+        append(OP_UPDATE, uid, flags);
+    }
+
+    public void appendRemove(int uid) throws IOException {
+        append(OP_REMOVE, uid, 0);
+    }
+
+    private void append(int op, int uid, int flags) throws IOException {
+        if (out == null) {
+            out = new FileOutputStream(file, true);
+        }
+
+        record.clear();
+        record.putInt(op).putInt(uid).putInt(flags);
+        crc.reset();
+        crc.update(record.array(), 0, RECORD_SIZE - 4);
+        record.putInt((int) crc.getValue());
+
+        out.write(record.array(), 0, RECORD_SIZE);
+        out.getChannel().force(false);
+        recordCount++;
+    }
+
+    /**
+     * Moves the live journal aside so that new records go to an empty file. If a previous compaction did not
+     * finish, the valid records of the live journal are appended to the moved one instead.
+     */
+    public void rotate() throws IOException {
+        close();
+        recordCount = 0;
+
+        if (!file.exists()) {
+            return;
+        }
+
+        if (!rotatedFile.exists()) {
+            if (!file.renameTo(rotatedFile)) {
+                throw new IOException("rename " + file + " to " + rotatedFile + " failed");
+            }
+            return;
+        }
+
+        try (RandomAccessFile dst = new RandomAccessFile(rotatedFile, "rw");
+             InputStream in = new FileInputStream(file)) {
+            // drop a torn tail first, the records appended after it would be unreachable otherwise
+            dst.setLength(validLength(rotatedFile));
+            dst.seek(dst.length());
+
+            long remaining = validLength(file);
+            byte[] buf = new byte[RECORD_SIZE * 256];
+            while (remaining > 0) {
+                int n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+                if (n < 0) {
+                    break;
+                }
+                dst.write(buf, 0, n);
+                remaining -= n;
+            }
+            dst.getFD().sync();
+        }
+        if (!file.delete()) {
+            throw new IOException("delete " + file + " failed");
+        }
+    }
+
+    private static long validLength(File file) {
+        SparseArray<Config.PackageEntry> ignored = new SparseArray<>();
+        return (long) replay(file, ignored) * RECORD_SIZE;
+    }
+
+    public void deleteRotated() {
+        if (rotatedFile.exists() && !rotatedFile.delete()) {
+            LOGGER.w("failed to delete " + rotatedFile);
+        }
+    }
+
+    private void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOGGER.w("failed to close: " + e);
+            }
+            out = null;
+        }
+    }
+}
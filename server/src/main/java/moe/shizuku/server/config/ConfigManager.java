@@ -1,25 +1,33 @@
 package moe.shizuku.server.config;
 
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.os.Build;
+import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.util.AtomicFile;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 
 import androidx.annotation.Nullable;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
 
-import kotlin.collections.ArraysKt;
+import moe.shizuku.server.ClientList;
 import moe.shizuku.server.api.SystemService;
 import moe.shizuku.server.ktx.HandlerKt;
+import moe.shizuku.server.utils.UserHandleCompat;
 
 import static moe.shizuku.server.ServerConstants.PERMISSION;
 import static moe.shizuku.server.utils.Logger.LOGGER;
@@ -37,13 +45,85 @@ public class ConfigManager {
     private static final File FILE = new File("/data/local/tmp/shizuku/shizuku.json");
     private static final AtomicFile ATOMIC_FILE = new AtomicFile(FILE);
 
+    private static final File BINARY_FILE = new File("/data/local/tmp/shizuku/shizuku.bin");
+    private static final AtomicFile BINARY_ATOMIC_FILE = new AtomicFile(BINARY_FILE);
+
+    /**
+     * Store the config in the compact binary format instead of JSON. The other format is still read when
+     * the preferred one does not exist, so switching in either direction migrates the existing file.
+     */
+    private static final boolean USE_BINARY = getBooleanProperty("persist.shizuku.config.binary");
+
+    private static final File JOURNAL_FILE = new File("/data/local/tmp/shizuku/shizuku.journal");
+    private static final ConfigJournal JOURNAL = new ConfigJournal(JOURNAL_FILE);
+
+    /**
+     * Append every change to {@link #JOURNAL} as it happens, so it survives a crash, and only rewrite the
+     * snapshot once the journal has grown to {@link #JOURNAL_COMPACT_THRESHOLD} records.
+     */
+    private static final boolean USE_JOURNAL = getBooleanProperty("persist.shizuku.config.journal");
+
+    private static final int JOURNAL_COMPACT_THRESHOLD = 512;
+
+    private static boolean getBooleanProperty(String key) {
+        try {
+            return SystemProperties.getBoolean(key, false);
+        } catch (Throwable tr) {
+            return false;
+        }
+    }
+
     public static Config load() {
+        Config config = loadSnapshot();
+
+        SparseArray<Config.PackageEntry> entries = new SparseArray<>(config.packages.size());
+        for (Config.PackageEntry entry : config.packages) {
+            entries.put(entry.uid, entry);
+        }
+
+        int count = JOURNAL.replay(entries);
+        if (count > 0) {
+            LOGGER.i("replayed %d journal records", count);
+
+            List<Config.PackageEntry> packages = new ArrayList<>(entries.size());
+            for (int i = 0; i < entries.size(); i++) {
+                packages.add(entries.valueAt(i));
+            }
+            config.packages = packages;
+        }
+        return config;
+    }
+
+    private static Config loadSnapshot() {
+        Config config;
+        if (USE_BINARY) {
+            config = loadBinary();
+            if (config == null) {
+                config = loadJson();
+            }
+        } else {
+            config = loadJson();
+            if (config == null) {
+                config = loadBinary();
+            }
+        }
+        if (config == null) {
+            LOGGER.i("no existing config file; starting empty");
+            return new Config();
+        }
+        if (config.packages == null) {
+            config.packages = new ArrayList<>();
+        }
+        return config;
+    }
+
+    @Nullable
+    private static Config loadJson() {
         FileInputStream stream;
         try {
             stream = ATOMIC_FILE.openRead();
         } catch (FileNotFoundException e) {
-            LOGGER.i("no existing config file " + ATOMIC_FILE.getBaseFile() + "; starting empty");
-            return new Config();
+            return null;
         }
 
         Config config = null;
@@ -61,26 +141,60 @@ public class ConfigManager {
         return config;
     }
 
-    public static void write(Config config) {
+    @Nullable
+    private static Config loadBinary() {
+        FileInputStream stream;
+        try {
+            stream = BINARY_ATOMIC_FILE.openRead();
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+
+        Config config = null;
+        try {
+            config = BinaryConfigFormat.read(new BufferedInputStream(stream));
+        } catch (Throwable tr) {
+            LOGGER.w(tr, "load binary config");
+        } finally {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                LOGGER.w("failed to close: " + e);
+            }
+        }
+        return config;
+    }
+
+    public static boolean write(Config config) {
         synchronized (ATOMIC_FILE) {
+            AtomicFile file = USE_BINARY ? BINARY_ATOMIC_FILE : ATOMIC_FILE;
             FileOutputStream stream;
             try {
-                stream = ATOMIC_FILE.startWrite();
+                stream = file.startWrite();
             } catch (IOException e) {
                 LOGGER.w("failed to write state: " + e);
-                return;
+                return false;
             }
 
             try {
-                String json = GSON_OUT.toJson(config);
-                stream.write(json.getBytes());
+                if (USE_BINARY) {
+                    BinaryConfigFormat.write(new BufferedOutputStream(stream), config);
+                } else {
+                    String json = GSON_OUT.toJson(config);
+                    stream.write(json.getBytes());
+                }
 
-                ATOMIC_FILE.finishWrite(stream);
+                file.finishWrite(stream);
                 LOGGER.v("config saved");
             } catch (Throwable tr) {
-                LOGGER.w(tr, "can't save %s, restoring backup.", ATOMIC_FILE.getBaseFile());
-                ATOMIC_FILE.failWrite(stream);
+                LOGGER.w(tr, "can't save %s, restoring backup.", file.getBaseFile());
+                file.failWrite(stream);
+                return false;
             }
+
+            // the config now lives in the preferred format, drop the migrated one
+            (USE_BINARY ? ATOMIC_FILE : BINARY_ATOMIC_FILE).delete();
+            return true;
         }
     }
 
@@ -97,36 +211,151 @@ public class ConfigManager {
 
         @Override
         public void run() {
-            write(config);
+            Config snapshot;
+            boolean rotated;
+            synchronized (ConfigManager.this) {
+                snapshot = snapshotLocked();
+                rotated = rotateJournalLocked();
+            }
+            if (write(snapshot) && rotated) {
+                JOURNAL.deleteRotated();
+            }
         }
     };
 
-    private final Config config;
+    private final SparseArray<Config.PackageEntry> entries = new SparseArray<>();
 
     private ConfigManager() {
-        this.config = load();
-
-        for (int userId : SystemService.getUserIdsNoThrow()) {
-            for (PackageInfo pi : SystemService.getInstalledPackagesNoThrow(PackageManager.GET_PERMISSIONS, userId)) {
-                if (pi == null
-                        || pi.applicationInfo == null
-                        || pi.requestedPermissions == null
-                        || !ArraysKt.contains(pi.requestedPermissions, PERMISSION)) {
-                    continue;
+        // written in the other format, rewrite it in the preferred one
+        boolean migrate = USE_BINARY ? !BINARY_FILE.exists() && FILE.exists() : !FILE.exists() && BINARY_FILE.exists();
+
+        Config config = load();
+        for (Config.PackageEntry entry : config.packages) {
+            entries.put(entry.uid, entry);
+        }
+
+        // records replayed by load() are only safe once they are in a snapshot
+        if (rotateJournalLocked() && JOURNAL.hasRotated()) {
+            migrate = true;
+        }
+
+        if (migrate) {
+            scheduleWriteLocked();
+        }
+    }
+
+    public interface OnPermissionChangedListener {
+
+        /**
+         * Called after the new verdict has been saved.
+         */
+        void onPermissionChanged(int uid, boolean allowed);
+    }
+
+    /**
+     * Brings the saved permission of client apps in line with the system. Called on the worker thread once
+     * the binder has been sent, clients attached until then got the saved verdict and are corrected through
+     * the listener.
+     * <p>
+     * The permission of every uid with a client package is checked, it can be granted or revoked
+     * ({@code pm grant}, {@code pm revoke}, settings) without any package changing. An explicit denial is kept
+     * as long as the system does not grant the permission. Entries of uids in the listed users that no
+     * longer have a client package are removed.
+     */
+    public void reconcile(ClientList list, OnPermissionChangedListener listener) {
+        long start = SystemClock.elapsedRealtime();
+
+        SparseBooleanArray clientUids = new SparseBooleanArray();
+        for (ClientList.Client client : list.clients) {
+            clientUids.put(client.uid, true);
+        }
+
+        SparseBooleanArray changed = new SparseBooleanArray();
+        for (int i = 0; i < clientUids.size(); i++) {
+            int uid = clientUids.keyAt(i);
+            boolean allowed;
+            try {
+                allowed = SystemService.checkPermission(PERMISSION, uid) == PackageManager.PERMISSION_GRANTED;
+            } catch (Throwable e) {
+                LOGGER.w("checkPermission");
+                continue;
+            }
+
+            synchronized (this) {
+                Config.PackageEntry entry = findLocked(uid);
+                boolean wasAllowed = entry != null && entry.isAllowed();
+                if (allowed != wasAllowed) {
+                    updateLocked(uid, Config.MASK_PERMISSION, allowed ? Config.FLAG_ALLOWED : 0);
+                    changed.put(uid, allowed);
                 }
+            }
+        }
 
-                int uid = pi.applicationInfo.uid;
-                boolean allowed;
-                try {
-                    allowed = SystemService.checkPermission(PERMISSION, uid) == PackageManager.PERMISSION_GRANTED;
-                } catch (Throwable e) {
-                    LOGGER.w("checkPermission");
+        SparseBooleanArray listedUsers = new SparseBooleanArray();
+        for (int userId : list.userIds) {
+            listedUsers.put(userId, true);
+        }
+        int removed = 0;
+        synchronized (this) {
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                int uid = entries.keyAt(i);
+                if (!listedUsers.get(UserHandleCompat.getUserId(uid)) || clientUids.get(uid)) {
                     continue;
                 }
+                if (entries.valueAt(i).isAllowed()) {
+                    changed.put(uid, false);
+                }
+                removeLocked(uid);
+                removed++;
+            }
+        }
 
-                updateLocked(uid, Config.MASK_PERMISSION, allowed ? Config.FLAG_ALLOWED : 0);
+        for (int i = 0; i < changed.size(); i++) {
+            listener.onPermissionChanged(changed.keyAt(i), changed.valueAt(i));
+        }
+        LOGGER.i("reconciled %d client uids in %dms, %d changed, %d removed",
+                clientUids.size(), SystemClock.elapsedRealtime() - start, changed.size(), removed);
+    }
+
+    private Config snapshotLocked() {
+        int size = entries.size();
+        List<Config.PackageEntry> packages = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            Config.PackageEntry entry = entries.valueAt(i);
+            packages.add(new Config.PackageEntry(entry.uid, entry.flags));
+        }
+        return new Config(packages);
+    }
+
+    private boolean rotateJournalLocked() {
+        try {
+            JOURNAL.rotate();
+            return true;
+        } catch (IOException e) {
+            LOGGER.w(e, "rotate journal");
+            return false;
+        }
+    }
+
+    private void onChangedLocked(int uid, @Nullable Config.PackageEntry entry) {
+        if (USE_JOURNAL) {
+            try {
+                if (entry != null) {
+                    JOURNAL.appendUpdate(uid, entry.flags);
+                } else {
+                    JOURNAL.appendRemove(uid);
+                }
+
+                if (JOURNAL.getRecordCount() >= JOURNAL_COMPACT_THRESHOLD) {
+                    HandlerKt.getWorkerHandler().removeCallbacks(mWriteRunner);
+                    HandlerKt.getWorkerHandler().post(mWriteRunner);
+                }
+                return;
+            } catch (IOException e) {
+                LOGGER.w(e, "append journal");
             }
         }
+        scheduleWriteLocked();
     }
 
     private void scheduleWriteLocked() {
@@ -141,12 +370,7 @@ public class ConfigManager {
     }
 
     private Config.PackageEntry findLocked(int uid) {
-        for (Config.PackageEntry entry : config.packages) {
-            if (uid == entry.uid) {
-                return entry;
-            }
-        }
-        return null;
+        return entries.get(uid);
     }
 
     @Nullable
@@ -160,7 +384,7 @@ public class ConfigManager {
         Config.PackageEntry entry = findLocked(uid);
         if (entry == null) {
             entry = new Config.PackageEntry(uid, mask & values);
-            config.packages.add(entry);
+            entries.put(uid, entry);
         } else {
             int newValue = (entry.flags & ~mask) | (mask & values);
             if (newValue == entry.flags) {
@@ -168,7 +392,7 @@ public class ConfigManager {
             }
             entry.flags = newValue;
         }
-        scheduleWriteLocked();
+        onChangedLocked(uid, entry);
     }
 
     public void update(int uid, int mask, int values) {
@@ -177,13 +401,21 @@ public class ConfigManager {
         }
     }
 
+    public void update(int[] uids, int mask, int values) {
+        synchronized (this) {
+            for (int uid : uids) {
+                updateLocked(uid, mask, values);
+            }
+        }
+    }
+
     private void removeLocked(int uid) {
-        Config.PackageEntry entry = findLocked(uid);
-        if (entry == null) {
+        int index = entries.indexOfKey(uid);
+        if (index < 0) {
             return;
         }
-        config.packages.remove(entry);
-        scheduleWriteLocked();
+        entries.removeAt(index);
+        onChangedLocked(uid, null);
     }
 
     public void remove(int uid) {
@@ -191,4 +423,4 @@ public class ConfigManager {
             removeLocked(uid);
         }
     }
-}
\ No newline at end of file
+}
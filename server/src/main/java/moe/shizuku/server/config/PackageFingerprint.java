@@ -0,0 +1,105 @@
+package moe.shizuku.server.config;
+
+import android.content.pm.PackageInfo;
+import android.util.SparseArray;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.List;
+
+import static moe.shizuku.server.utils.Logger.LOGGER;
+
+/**
+ * Summary of the packages installed for a user: how many there are, the latest install or update time and
+ * a hash of (package name, update time) pairs. Comparing it with the one saved last time tells whether any
+ * package changed while the server was not running, and which ones are newer.
+ */
+public class PackageFingerprint {
+
+    public final int count;
+    public final long lastUpdateTime;
+    public final long hash;
+
+    public PackageFingerprint(int count, long lastUpdateTime, long hash) {
+        this.count = count;
+        this.lastUpdateTime = lastUpdateTime;
+        this.hash = hash;
+    }
+
+    public static PackageFingerprint of(List<PackageInfo> packages) {
+        int count = 0;
+        long lastUpdateTime = 0;
+        long hash = 0;
+        for (PackageInfo pi : packages) {
+            if (pi == null || pi.packageName == null) {
+                continue;
+            }
+            count++;
+            lastUpdateTime = Math.max(lastUpdateTime, pi.lastUpdateTime);
+            // a sum does not depend on the order the packages are listed in
+            hash += pi.packageName.hashCode() * 31L + pi.lastUpdateTime;
+        }
+        return new PackageFingerprint(count, lastUpdateTime, hash);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof PackageFingerprint)) return false;
+        PackageFingerprint that = (PackageFingerprint) o;
+        return count == that.count && lastUpdateTime == that.lastUpdateTime && hash == that.hash;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (31 * (31 * count + lastUpdateTime) + hash);
+    }
+
+    /**
+     * @return fingerprints by user id, empty if the file does not exist or can't be read
+     */
+    public static SparseArray<PackageFingerprint> read(File file) {
+        SparseArray<PackageFingerprint> fingerprints = new SparseArray<>();
+        if (!file.exists()) {
+            return fingerprints;
+        }
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if (parts.length != 4) {
+                    continue;
+                }
+                fingerprints.put(Integer.parseInt(parts[0]),
+                        new PackageFingerprint(Integer.parseInt(parts[1]), Long.parseLong(parts[2]), Long.parseLong(parts[3])));
+            }
+        } catch (Throwable tr) {
+            LOGGER.w(tr, "read %s", file);
+            fingerprints.clear();
+        }
+        return fingerprints;
+    }
+
+    public static void write(File file, SparseArray<PackageFingerprint> fingerprints) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp)))) {
+            for (int i = 0; i < fingerprints.size(); i++) {
+                PackageFingerprint fingerprint = fingerprints.valueAt(i);
+                writer.write(fingerprints.keyAt(i) + " " + fingerprint.count + " " + fingerprint.lastUpdateTime + " " + fingerprint.hash);
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            LOGGER.w(e, "write %s", file);
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            LOGGER.w("rename %s failed", tmp);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package moe.shizuku.server.utils;
+
+import android.os.IBinder;
+import android.os.RemoteException;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Remembers interface descriptors of remote binders, getInterfaceDescriptor() is a binder call itself.
+ */
+public class BinderDescriptors {
+
+    private static final Map<IBinder, String> DESCRIPTORS = new WeakHashMap<>();
+
+    /**
+     * @return descriptor of the binder, or null if it can't be retrieved
+     */
+    public static String get(IBinder binder) {
+        String descriptor;
+        synchronized (DESCRIPTORS) {
+            descriptor = DESCRIPTORS.get(binder);
+        }
+        if (descriptor != null) {
+            return descriptor;
+        }
+
+        try {
+            descriptor = binder.getInterfaceDescriptor();
+        } catch (RemoteException e) {
+            return null;
+        }
+        if (descriptor == null) {
+            return null;
+        }
+        synchronized (DESCRIPTORS) {
+            DESCRIPTORS.put(binder, descriptor);
+        }
+        return descriptor;
+    }
+}
@@ -1,122 +1,310 @@
 package moe.shizuku.server.utils;
 
+import android.os.SystemProperties;
 import android.util.Log;
 
 import java.util.Locale;
 
+/**
+ * Logs with a level that can be changed at runtime through the {@link #LEVEL_PROPERTY} property
+ * (V, D, I, W or E, the server re-reads it when it is set through setSystemProperty).
+ * <p>
+ * Nothing is formatted for a disabled level. Enabled records are put into a ring buffer and formatted and
+ * written by a single background thread, so binder threads never wait for logd. When the buffer is full the
+ * record is dropped and the number of dropped records is logged with the next one written. The buffer is
+ * drained when the process exits.
+ */
 public class Logger {
 
+    public static final String LEVEL_PROPERTY = "persist.shizuku.log_level";
+
+    private static final int DEFAULT_LEVEL = Log.INFO;
+
     public static final Logger LOGGER = new Logger("ShizukuServer");
 
+    private static class Record {
+
+        String tag;
+        int level;
+        String fmt;
+        Object[] args;
+        Throwable tr;
+    }
+
+    private static final int CAPACITY = 256;
+
+    private static final Record[] RING = new Record[CAPACITY];
+    private static int head;
+    private static int size;
+    private static int dropped;
+    private static Thread writer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            RING[i] = new Record();
+        }
+    }
+
     private final String TAG;
+    private volatile int level;
 
     public Logger(String TAG) {
         this.TAG = TAG;
+        reloadLevel();
+    }
+
+    /**
+     * Reads the level from {@link #LEVEL_PROPERTY} again.
+     */
+    public void reloadLevel() {
+        String value;
+        try {
+            value = SystemProperties.get(LEVEL_PROPERTY, "");
+        } catch (Throwable tr) {
+            value = "";
+        }
+        setLevel(parseLevel(value));
+    }
+
+    private static int parseLevel(String value) {
+        if (value == null || value.isEmpty()) {
+            return DEFAULT_LEVEL;
+        }
+        switch (Character.toUpperCase(value.charAt(0))) {
+            case 'V':
+                return Log.VERBOSE;
+            case 'D':
+                return Log.DEBUG;
+            case 'I':
+                return Log.INFO;
+            case 'W':
+                return Log.WARN;
+            case 'E':
+                return Log.ERROR;
+            default:
+                return DEFAULT_LEVEL;
+        }
+    }
+
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    public int getLevel() {
+        return level;
     }
 
     public boolean isLoggable(String tag, int level) {
-        return true;
+        return level >= this.level;
+    }
+
+    public boolean isLoggable(int level) {
+        return isLoggable(TAG, level);
+    }
+
+    private void enqueue(int level, String fmt, Object[] args, Throwable tr) {
+        synchronized (RING) {
+            if (size == CAPACITY) {
+                dropped++;
+                return;
+            }
+
+            Record record = RING[(head + size) % CAPACITY];
+            record.tag = TAG;
+            record.level = level;
+            record.fmt = fmt;
+            record.args = args;
+            record.tr = tr;
+            size++;
+
+            if (writer == null) {
+                startWriter();
+            }
+            if (size == 1) {
+                RING.notify();
+            }
+        }
+    }
+
+    private static void startWriter() {
+        writer = new Thread(() -> {
+            //noinspection InfiniteLoopStatement
+            while (true) {
+                try {
+                    drain(true);
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }, "shizuku-logger");
+        writer.setDaemon(true);
+        writer.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                drain(false);
+            } catch (InterruptedException ignored) {
+            }
+        }));
+    }
+
+    /**
+     * Writes out queued records, waiting for one if {@code block} is true and the queue is empty.
+     */
+    private static void drain(boolean block) throws InterruptedException {
+        String tag;
+        int level;
+        String fmt;
+        Object[] args;
+        Throwable tr;
+        int lost;
+
+        while (true) {
+            synchronized (RING) {
+                while (block && size == 0) {
+                    RING.wait();
+                }
+                if (size == 0) {
+                    return;
+                }
+
+                Record record = RING[head];
+                tag = record.tag;
+                level = record.level;
+                fmt = record.fmt;
+                args = record.args;
+                tr = record.tr;
+                record.args = null;
+                record.tr = null;
+
+                head = (head + 1) % CAPACITY;
+                size--;
+                lost = dropped;
+                dropped = 0;
+            }
+
+            if (lost > 0) {
+                Log.w(tag, lost + " log records dropped");
+            }
+
+            // a bad record must not stop the writer thread
+            try {
+                write(tag, level, args != null ? String.format(Locale.ENGLISH, fmt, args) : fmt, tr);
+            } catch (Throwable e) {
+                try {
+                    write(tag, level, fmt, tr);
+                } catch (Throwable ignored) {
+                }
+            }
+        }
+    }
+
+    private static void write(String tag, int level, String msg, Throwable tr) {
+        if (tr != null) {
+            Log.println(level, tag, msg + '\n' + Log.getStackTraceString(tr));
+        } else {
+            Log.println(level, tag, msg);
+        }
     }
 
     public void v(String msg) {
         if (isLoggable(TAG, Log.VERBOSE)) {
-            Log.v(TAG, msg);
+            enqueue(Log.VERBOSE, msg, null, null);
         }
     }
 
     public void v(String fmt, Object... args) {
         if (isLoggable(TAG, Log.VERBOSE)) {
-            Log.v(TAG, String.format(Locale.ENGLISH, fmt, args));
+            enqueue(Log.VERBOSE, fmt, args, null);
         }
     }
 
     public void v(String msg, Throwable tr) {
         if (isLoggable(TAG, Log.VERBOSE)) {
-            Log.v(TAG, msg, tr);
+            enqueue(Log.VERBOSE, msg, null, tr);
         }
     }
 
     public void d(String msg) {
         if (isLoggable(TAG, Log.DEBUG)) {
-            Log.d(TAG, msg);
+            enqueue(Log.DEBUG, msg, null, null);
         }
     }
 
     public void d(String fmt, Object... args) {
         if (isLoggable(TAG, Log.DEBUG)) {
-            Log.d(TAG, String.format(Locale.ENGLISH, fmt, args));
+            enqueue(Log.DEBUG, fmt, args, null);
         }
     }
 
     public void d(String msg, Throwable tr) {
         if (isLoggable(TAG, Log.DEBUG)) {
-            Log.d(TAG, msg, tr);
+            enqueue(Log.DEBUG, msg, null, tr);
         }
     }
 
     public void i(String msg) {
         if (isLoggable(TAG, Log.INFO)) {
-            Log.i(TAG, msg);
+            enqueue(Log.INFO, msg, null, null);
         }
     }
 
     public void i(String fmt, Object... args) {
         if (isLoggable(TAG, Log.INFO)) {
-            Log.i(TAG, String.format(Locale.ENGLISH, fmt, args));
+            enqueue(Log.INFO, fmt, args, null);
         }
     }
 
     public void i(String msg, Throwable tr) {
         if (isLoggable(TAG, Log.INFO)) {
-            Log.i(TAG, msg, tr);
+            enqueue(Log.INFO, msg, null, tr);
         }
     }
 
     public void w(String msg) {
         if (isLoggable(TAG, Log.WARN)) {
-            Log.w(TAG, msg);
+            enqueue(Log.WARN, msg, null, null);
         }
     }
 
     public void w(String fmt, Object... args) {
         if (isLoggable(TAG, Log.WARN)) {
-            Log.w(TAG, String.format(Locale.ENGLISH, fmt, args));
+            enqueue(Log.WARN, fmt, args, null);
         }
     }
 
     public void w(Throwable tr, String fmt, Object... args) {
         if (isLoggable(TAG, Log.WARN)) {
-            Log.w(TAG, String.format(Locale.ENGLISH, fmt, args), tr);
+            enqueue(Log.WARN, fmt, args, tr);
         }
     }
 
     public void w(String msg, Throwable tr) {
         if (isLoggable(TAG, Log.WARN)) {
-            Log.w(TAG, msg, tr);
+            enqueue(Log.WARN, msg, null, tr);
         }
     }
 
     public void e(String msg) {
         if (isLoggable(TAG, Log.ERROR)) {
-            Log.e(TAG, msg);
+            enqueue(Log.ERROR, msg, null, null);
         }
     }
 
     public void e(String fmt, Object... args) {
         if (isLoggable(TAG, Log.ERROR)) {
-            Log.e(TAG, String.format(Locale.ENGLISH, fmt, args));
+            enqueue(Log.ERROR, fmt, args, null);
         }
     }
 
     public void e(String msg, Throwable tr) {
         if (isLoggable(TAG, Log.ERROR)) {
-            Log.e(TAG, msg, tr);
+            enqueue(Log.ERROR, msg, null, tr);
         }
     }
 
     public void e(Throwable tr, String fmt, Object... args) {
         if (isLoggable(TAG, Log.ERROR)) {
-            Log.e(TAG, String.format(Locale.ENGLISH, fmt, args), tr);
+            enqueue(Log.ERROR, fmt, args, tr);
         }
     }
 }
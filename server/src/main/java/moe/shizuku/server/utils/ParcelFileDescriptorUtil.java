@@ -2,21 +2,130 @@ package moe.shizuku.server.utils;
 
 import android.os.ParcelFileDescriptor;
 
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static moe.shizuku.server.utils.Logger.LOGGER;
 
+/**
+ * Connects streams of the server, such as those of a remote process, to pipes which can be sent to clients.
+ * <p>
+ * Streams backed by a file descriptor (process streams are) are copied by {@link TransferLoop}, one thread for
+ * all of them. The server takes its own copy of the descriptor and closes the stream, so the process does not
+ * drain or close the descriptor under the loop when it exits. Other streams are pumped by blocking threads.
+ */
 public class ParcelFileDescriptorUtil {
 
+    /*
+     Only for streams without a descriptor. Pumps block on read, so the pool is not bounded, otherwise a few
+     long-running streams could starve everyone else.
+     */
+    private static final ExecutorService EXECUTOR = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+            30L, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+        Thread thread = new Thread(runnable, "ParcelFileDescriptor Transfer Thread");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final AtomicLong TRANSFERRED_BYTES = new AtomicLong();
+
+    private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    private static final Field FILTER_IN = getField(FilterInputStream.class, "in");
+    private static final Field FILTER_OUT = getField(FilterOutputStream.class, "out");
+
+    private static Field getField(Class<?> cls, String name) {
+        try {
+            Field field = cls.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (Throwable tr) {
+            LOGGER.w(tr, "get field %s", name);
+            return null;
+        }
+    }
+
+    /**
+     * @return bytes moved by the transfer threads since the server started
+     */
+    public static long getTransferredBytes() {
+        return TRANSFERRED_BYTES.get();
+    }
+
+    static void onTransferred(int count) {
+        TRANSFERRED_BYTES.addAndGet(count);
+    }
+
+    /**
+     * Takes the descriptor under a stream, unwrapping buffered streams, and closes the stream.
+     *
+     * @return a copy of the descriptor, or null if the stream has none, the stream is left open then
+     */
+    private static ParcelFileDescriptor takeDescriptor(Closeable stream) {
+        Object current = stream;
+        FileDescriptor fd = null;
+        try {
+            while (fd == null && current != null) {
+                if (current instanceof FileInputStream) {
+                    fd = ((FileInputStream) current).getFD();
+                } else if (current instanceof FileOutputStream) {
+                    fd = ((FileOutputStream) current).getFD();
+                } else if (current instanceof FilterInputStream && FILTER_IN != null) {
+                    current = FILTER_IN.get(current);
+                } else if (current instanceof FilterOutputStream && FILTER_OUT != null) {
+                    current = FILTER_OUT.get(current);
+                } else {
+                    return null;
+                }
+            }
+            if (fd == null || !fd.valid()) {
+                return null;
+            }
+            ParcelFileDescriptor pfd = ParcelFileDescriptor.dup(fd);
+            try {
+                stream.close();
+            } catch (IOException ignored) {
+            }
+            return pfd;
+        } catch (Throwable tr) {
+            LOGGER.w(tr, "take descriptor of %s", stream);
+            return null;
+        }
+    }
+
     public static ParcelFileDescriptor pipeFrom(InputStream inputStream) throws IOException {
         ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
         ParcelFileDescriptor readSide = pipe[0];
         ParcelFileDescriptor writeSide = pipe[1];
 
-        new TransferThread(inputStream, new ParcelFileDescriptor.AutoCloseOutputStream(writeSide))
-                .start();
+        TransferLoop loop = TransferLoop.getInstance();
+        ParcelFileDescriptor source = loop != null ? takeDescriptor(inputStream) : null;
+        if (source != null) {
+            loop.add(source, writeSide);
+        } else {
+            EXECUTOR.execute(new TransferTask(inputStream, new ParcelFileDescriptor.AutoCloseOutputStream(writeSide)));
+        }
 
         return readSide;
     }
@@ -26,32 +135,41 @@ public class ParcelFileDescriptorUtil {
         ParcelFileDescriptor readSide = pipe[0];
         ParcelFileDescriptor writeSide = pipe[1];
 
-        new TransferThread(new ParcelFileDescriptor.AutoCloseInputStream(readSide), outputStream)
-                .start();
+        TransferLoop loop = TransferLoop.getInstance();
+        ParcelFileDescriptor target = loop != null ? takeDescriptor(outputStream) : null;
+        if (target != null) {
+            loop.add(readSide, target);
+        } else {
+            EXECUTOR.execute(new TransferTask(new ParcelFileDescriptor.AutoCloseInputStream(readSide), outputStream));
+        }
 
         return writeSide;
     }
 
-    static class TransferThread extends Thread {
+    static class TransferTask implements Runnable {
         final InputStream mIn;
         final OutputStream mOut;
 
-        TransferThread(InputStream in, OutputStream out) {
-            super("ParcelFileDescriptor Transfer Thread");
+        TransferTask(InputStream in, OutputStream out) {
             mIn = in;
             mOut = out;
-            setDaemon(true);
         }
 
         @Override
         public void run() {
-            byte[] buf = new byte[8192];
+            byte[] buf = BUFFER.get();
             int len;
 
             try {
                 while ((len = mIn.read(buf)) > 0) {
                     mOut.write(buf, 0, len);
-                    mOut.flush();
+                    // per chunk, so that a long running transfer shows up in the metrics while it runs
+                    TRANSFERRED_BYTES.addAndGet(len);
+
+                    // only flush when the reader has caught up, not after every chunk of a bulk transfer
+                    if (mIn.available() <= 0) {
+                        mOut.flush();
+                    }
                 }
             } catch (IOException e) {
                 LOGGER.e(e, "TransferThread");
@@ -69,4 +187,4 @@ public class ParcelFileDescriptorUtil {
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,59 @@
+package moe.shizuku.server.utils;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.Field;
+
+public class ProcUtils {
+
+    /**
+     * @return pid of a process started by this process, or -1 if it can't be found
+     */
+    public static int getPid(Process process) {
+        try {
+            Field field = process.getClass().getDeclaredField("pid");
+            field.setAccessible(true);
+            return field.getInt(process);
+        } catch (Throwable tr) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return resident set size of the process in kB, or -1 if it can't be read
+     */
+    public static long getRssKb(int pid) {
+        return readKb("/proc/" + pid + "/status", "VmRSS:");
+    }
+
+    /**
+     * @return MemAvailable in /proc/meminfo in kB, or -1 if it can't be read
+     */
+    public static long getMemAvailableKb() {
+        return readKb("/proc/meminfo", "MemAvailable:");
+    }
+
+    /**
+     * @return MemTotal in /proc/meminfo in kB, or -1 if it can't be read
+     */
+    public static long getMemTotalKb() {
+        return readKb("/proc/meminfo", "MemTotal:");
+    }
+
+    private static long readKb(String file, String name) {
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.startsWith(name)) {
+                    continue;
+                }
+                String value = line.substring(name.length()).trim();
+                int index = value.indexOf(' ');
+                return Long.parseLong(index != -1 ? value.substring(0, index) : value);
+            }
+        } catch (IOException | NumberFormatException ignored) {
+        }
+        return -1;
+    }
+}
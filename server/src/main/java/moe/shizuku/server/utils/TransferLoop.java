@@ -0,0 +1,226 @@
+package moe.shizuku.server.utils;
+
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static moe.shizuku.server.utils.Logger.LOGGER;
+
+/**
+ * One thread moving data between descriptors for all transfers, instead of a blocking thread per stream.
+ * <p>
+ * The thread polls every descriptor at once. A transfer waits for its source to be readable while its
+ * buffer is empty, and for its destination to be writable while it is not. A read takes whatever the pipe
+ * has, and a write is at most {@link #PIPE_BUF} bytes, which a pipe reported writable always takes without
+ * blocking, so the descriptors can stay blocking. Buffers are direct, so Os.read and Os.write use them
+ * without a copy, and are reused by later transfers.
+ */
+class TransferLoop {
+
+    // a pipe reported writable has room for at least this many bytes
+    private static final int PIPE_BUF = 4096;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_IDLE_BUFFERS = 8;
+
+    private static TransferLoop instance;
+    private static boolean failed;
+
+    /**
+     * @return the loop, or null if it could not be started and streams have to be copied by threads
+     */
+    static synchronized TransferLoop getInstance() {
+        if (instance == null && !failed) {
+            try {
+                instance = new TransferLoop();
+            } catch (ErrnoException e) {
+                LOGGER.w(e, "start transfer loop");
+                failed = true;
+            }
+        }
+        return instance;
+    }
+
+    private static class Transfer {
+
+        final ParcelFileDescriptor in;
+        final ParcelFileDescriptor out;
+        // data read and not written yet is between position and limit
+        final ByteBuffer buffer;
+
+        Transfer(ParcelFileDescriptor in, ParcelFileDescriptor out, ByteBuffer buffer) {
+            this.in = in;
+            this.out = out;
+            this.buffer = buffer;
+        }
+    }
+
+    private final FileDescriptor wakeRead;
+    private final FileDescriptor wakeWrite;
+    private final AtomicBoolean wakePending = new AtomicBoolean();
+    private final ConcurrentLinkedQueue<Transfer> added = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<ByteBuffer> idleBuffers = new ArrayDeque<>();
+
+    private TransferLoop() throws ErrnoException {
+        FileDescriptor[] wake = Os.pipe();
+        wakeRead = wake[0];
+        wakeWrite = wake[1];
+
+        Thread thread = new Thread(this::loop, "ParcelFileDescriptor Transfer Thread");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Copies everything from in to out, both are closed by the loop when in reaches the end or either fails.
+     */
+    void add(ParcelFileDescriptor in, ParcelFileDescriptor out) {
+        ByteBuffer buffer;
+        synchronized (idleBuffers) {
+            buffer = idleBuffers.poll();
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        buffer.clear().limit(0);
+
+        added.add(new Transfer(in, out, buffer));
+        if (wakePending.compareAndSet(false, true)) {
+            try {
+                Os.write(wakeWrite, new byte[1], 0, 1);
+            } catch (ErrnoException | IOException e) {
+                LOGGER.w(e, "wake transfer loop");
+            }
+        }
+    }
+
+    private void loop() {
+        List<Transfer> transfers = new ArrayList<>();
+        StructPollfd[] fds = new StructPollfd[0];
+        byte[] wakeBuffer = new byte[16];
+
+        while (true) {
+            Transfer transfer;
+            while ((transfer = added.poll()) != null) {
+                transfers.add(transfer);
+            }
+
+            if (fds.length != transfers.size() + 1) {
+                fds = new StructPollfd[transfers.size() + 1];
+                for (int i = 0; i < fds.length; i++) {
+                    fds[i] = new StructPollfd();
+                }
+            }
+            fds[0].fd = wakeRead;
+            fds[0].events = (short) OsConstants.POLLIN;
+            fds[0].revents = 0;
+            for (int i = 0; i < transfers.size(); i++) {
+                transfer = transfers.get(i);
+                StructPollfd fd = fds[i + 1];
+                if (transfer.buffer.hasRemaining()) {
+                    fd.fd = transfer.out.getFileDescriptor();
+                    fd.events = (short) OsConstants.POLLOUT;
+                } else {
+                    fd.fd = transfer.in.getFileDescriptor();
+                    fd.events = (short) OsConstants.POLLIN;
+                }
+                fd.revents = 0;
+            }
+
+            try {
+                Os.poll(fds, -1);
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.EINTR) {
+                    continue;
+                }
+                // the same descriptors would fail again, give up on all of them
+                LOGGER.e(e, "poll");
+                for (Transfer t : transfers) {
+                    finish(t);
+                }
+                transfers.clear();
+                continue;
+            }
+
+            if (fds[0].revents != 0) {
+                // cleared before reading, so an add after this wakes the next poll
+                wakePending.set(false);
+                try {
+                    Os.read(wakeRead, wakeBuffer, 0, wakeBuffer.length);
+                } catch (ErrnoException | IOException e) {
+                    LOGGER.w(e, "read wake pipe");
+                }
+            }
+
+            for (int i = transfers.size() - 1; i >= 0; i--) {
+                short revents = fds[i + 1].revents;
+                if (revents != 0 && !step(transfers.get(i), revents)) {
+                    finish(transfers.remove(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return false if the transfer is done
+     */
+    private static boolean step(Transfer transfer, short revents) {
+        ByteBuffer buffer = transfer.buffer;
+        try {
+            if (buffer.hasRemaining()) {
+                if ((revents & OsConstants.POLLOUT) == 0) {
+                    // POLLERR or POLLHUP, nobody reads from out anymore
+                    return false;
+                }
+                int limit = buffer.limit();
+                buffer.limit(Math.min(limit, buffer.position() + PIPE_BUF));
+                int count = Os.write(transfer.out.getFileDescriptor(), buffer);
+                buffer.limit(limit);
+                ParcelFileDescriptorUtil.onTransferred(count);
+                return true;
+            }
+
+            if ((revents & OsConstants.POLLNVAL) != 0) {
+                return false;
+            }
+            buffer.clear();
+            int count = Os.read(transfer.in.getFileDescriptor(), buffer);
+            buffer.flip();
+            return count > 0;
+        } catch (ErrnoException | IOException e) {
+            if (!(e instanceof ErrnoException) || ((ErrnoException) e).errno != OsConstants.EPIPE) {
+                LOGGER.w(e, "transfer");
+            }
+            return false;
+        }
+    }
+
+    private void finish(Transfer transfer) {
+        closeQuietly(transfer.in);
+        closeQuietly(transfer.out);
+        synchronized (idleBuffers) {
+            if (idleBuffers.size() < MAX_IDLE_BUFFERS) {
+                idleBuffers.add(transfer.buffer);
+            }
+        }
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor pfd) {
+        try {
+            pfd.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
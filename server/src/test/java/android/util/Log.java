@@ -0,0 +1,28 @@
+package android.util;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+public class Log {
+
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    public static int println(int priority, String tag, String msg) {
+        System.out.println(tag + ": " + msg);
+        return 0;
+    }
+
+    public static int w(String tag, String msg) {
+        return println(WARN, tag, msg);
+    }
+
+    public static String getStackTraceString(Throwable tr) {
+        StringWriter sw = new StringWriter();
+        tr.printStackTrace(new PrintWriter(sw));
+        return sw.toString();
+    }
+}
@@ -0,0 +1,39 @@
+package android.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+public class SparseArray<E> {
+
+    private final TreeMap<Integer, E> map = new TreeMap<>();
+
+    public E get(int key) {
+        return map.get(key);
+    }
+
+    public void put(int key, E value) {
+        map.put(key, value);
+    }
+
+    public void remove(int key) {
+        map.remove(key);
+    }
+
+    public void clear() {
+        map.clear();
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public int keyAt(int index) {
+        return new ArrayList<>(map.keySet()).get(index);
+    }
+
+    public E valueAt(int index) {
+        List<E> values = new ArrayList<>(map.values());
+        return values.get(index);
+    }
+}
@@ -0,0 +1,208 @@
+package moe.shizuku.server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ClientIndexTest {
+
+    private static ClientRecord record(int uid, int pid) {
+        return new ClientRecord(uid, pid, null, "package" + uid);
+    }
+
+    @Test
+    public void findsEveryRecord() {
+        List<ClientRecord> records = new ArrayList<>();
+        for (int uid = 10000; uid < 10050; uid++) {
+            for (int pid = 0; pid < 5; pid++) {
+                records.add(record(uid, uid * 7 + pid));
+            }
+        }
+        // pids and uids that differ only in the sign bit must not collide
+        records.add(record(-1, 1));
+        records.add(record(1, -1));
+
+        ClientIndex index = new ClientIndex(records);
+        for (ClientRecord record : records) {
+            assertSame(record, index.findClient(record.uid, record.pid));
+            assertTrue(index.findClients(record.uid).contains(record));
+        }
+        assertEquals(5, index.findClients(10000).size());
+        assertNull(index.findClient(10000, 1));
+        assertNull(index.findClient(1, 1));
+        assertTrue(index.findClients(9999).isEmpty());
+    }
+
+    @Test
+    public void emptyIndex() {
+        assertNull(ClientIndex.EMPTY.findClient(0, 0));
+        assertTrue(ClientIndex.EMPTY.findClients(0).isEmpty());
+    }
+
+    /**
+     * One writer attaches and removes clients the way {@link ClientManager} does while readers look them up
+     * without locking. Every index a reader sees must be consistent with the records it was built from.
+     */
+    @Test
+    public void concurrentRebuildAndLookup() throws Exception {
+        final int readers = 4;
+        final long durationMillis = 2000;
+
+        List<ClientRecord> records = new ArrayList<>();
+        AtomicReference<Snapshot> current = new AtomicReference<>(new Snapshot(records));
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(readers);
+
+        for (int i = 0; i < readers; i++) {
+            long seed = i;
+            Thread thread = new Thread(() -> {
+                Random random = new Random(seed);
+                try {
+                    while (!stop.get()) {
+                        Snapshot snapshot = current.get();
+                        snapshot.check(random);
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            }, "reader-" + i);
+            thread.start();
+        }
+
+        Random random = new Random(42);
+        long deadline = System.currentTimeMillis() + durationMillis;
+        int rebuilds = 0;
+        while (System.currentTimeMillis() < deadline && failure.get() == null) {
+            if (records.isEmpty() || records.size() < 200 && random.nextBoolean()) {
+                records.add(record(10000 + random.nextInt(20), random.nextInt(100000)));
+            } else {
+                records.remove(random.nextInt(records.size()));
+            }
+            current.set(new Snapshot(records));
+            rebuilds++;
+        }
+        stop.set(true);
+        done.await();
+
+        if (failure.get() != null) {
+            throw new AssertionError("reader failed after " + rebuilds + " rebuilds", failure.get());
+        }
+    }
+
+    private static ClientRecord scan(List<ClientRecord> records, int uid, int pid) {
+        for (ClientRecord record : records) {
+            if (record.uid == uid && record.pid == pid) {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Lookups through the index against the list scan ClientManager did before it, and the cost of the
+     * rebuild each attach and death pays for them.
+     */
+    @Test
+    public void lookupTiming() throws Exception {
+        for (int size : new int[]{16, 256, 4096}) {
+            List<ClientRecord> records = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                records.add(record(10000 + i / 4, 1000 + i));
+            }
+            ClientIndex index = new ClientIndex(records);
+
+            Random random = new Random(size);
+            ClientRecord[] targets = new ClientRecord[1024];
+            for (int i = 0; i < targets.length; i++) {
+                targets[i] = records.get(random.nextInt(size));
+            }
+
+            double indexed = Timing.nanosPerOp(200000, n -> {
+                long found = 0;
+                for (int i = 0; i < n; i++) {
+                    ClientRecord target = targets[i & 1023];
+                    if (index.findClient(target.uid, target.pid) == target) {
+                        found++;
+                    }
+                }
+                assertEquals(n, found);
+                return found;
+            });
+            double scanned = Timing.nanosPerOp(size > 256 ? 2000 : 200000, n -> {
+                long found = 0;
+                for (int i = 0; i < n; i++) {
+                    ClientRecord target = targets[i & 1023];
+                    if (scan(records, target.uid, target.pid) == target) {
+                        found++;
+                    }
+                }
+                assertEquals(n, found);
+                return found;
+            });
+            double rebuild = Timing.nanosPerOp(size > 256 ? 200 : 5000,
+                    n -> {
+                        long total = 0;
+                        for (int i = 0; i < n; i++) {
+                            total += new ClientIndex(records).findClients(10000).size();
+                        }
+                        return total;
+                    });
+
+            Timing.print("findClient, " + size + " clients, index", indexed);
+            Timing.print("findClient, " + size + " clients, list scan", scanned);
+            Timing.print("rebuild, " + size + " clients", rebuild);
+        }
+    }
+
+    private static class Snapshot {
+
+        final ClientRecord[] records;
+        final ClientIndex index;
+
+        Snapshot(List<ClientRecord> records) {
+            this.records = records.toArray(new ClientRecord[0]);
+            this.index = new ClientIndex(records);
+        }
+
+        void check(Random random) {
+            if (records.length == 0) {
+                assertNull(index.findClient(10000, 0));
+                return;
+            }
+
+            ClientRecord expected = records[random.nextInt(records.length)];
+            ClientRecord found = index.findClient(expected.uid, expected.pid);
+            if (found == null || found.uid != expected.uid || found.pid != expected.pid) {
+                fail("findClient(" + expected.uid + ", " + expected.pid + ") returned " + found);
+            }
+
+            List<ClientRecord> clients = index.findClients(expected.uid);
+            int count = 0;
+            for (ClientRecord record : records) {
+                if (record.uid == expected.uid) {
+                    count++;
+                }
+            }
+            assertEquals(count, clients.size());
+            for (ClientRecord record : clients) {
+                assertEquals(expected.uid, record.uid);
+                assertTrue(Arrays.asList(records).contains(record));
+            }
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package moe.shizuku.server;
+
+import android.os.DeadObjectException;
+import android.os.IBinder;
+
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ClientManagerTest {
+
+    /**
+     * A binder of a client app, {@link #kill()} runs its death recipients like the binder driver does.
+     */
+    private static class FakeBinder implements InvocationHandler {
+
+        final IBinder binder = (IBinder) Proxy.newProxyInstance(IBinder.class.getClassLoader(),
+                new Class<?>[]{IBinder.class}, this);
+        private final List<IBinder.DeathRecipient> recipients = new ArrayList<>();
+        private boolean dead;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "linkToDeath":
+                    synchronized (this) {
+                        if (dead) {
+                            throw new DeadObjectException();
+                        }
+                        recipients.add((IBinder.DeathRecipient) args[0]);
+                    }
+                    return null;
+                case "unlinkToDeath":
+                    synchronized (this) {
+                        return recipients.remove((IBinder.DeathRecipient) args[0]);
+                    }
+                case "isBinderAlive":
+                case "pingBinder":
+                    synchronized (this) {
+                        return !dead;
+                    }
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        }
+
+        void kill() {
+            List<IBinder.DeathRecipient> toNotify;
+            synchronized (this) {
+                dead = true;
+                toNotify = new ArrayList<>(recipients);
+                recipients.clear();
+            }
+            for (IBinder.DeathRecipient recipient : toNotify) {
+                recipient.binderDied();
+            }
+        }
+
+        synchronized int getRecipientCount() {
+            return recipients.size();
+        }
+    }
+
+    private static IShizukuApplication application(FakeBinder binder) {
+        return (IShizukuApplication) Proxy.newProxyInstance(IShizukuApplication.class.getClassLoader(),
+                new Class<?>[]{IShizukuApplication.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("asBinder")) {
+                        return binder.binder;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    private static final int ATTACHING = 0;
+    private static final int ATTACHED = 1;
+    private static final int DYING = 2;
+    private static final int DEAD = 3;
+
+    private static class Client {
+
+        final int uid;
+        final int pid;
+        final FakeBinder binder = new FakeBinder();
+        final AtomicInteger state = new AtomicInteger(ATTACHING);
+        volatile ClientRecord record;
+
+        Client(int uid, int pid) {
+            this.uid = uid;
+            this.pid = pid;
+        }
+    }
+
+    private static ClientManager newClientManager() {
+        return new ClientManager(uid -> uid % 2 == 0, PermissionCache.getInstance());
+    }
+
+    @Test
+    public void attachAndDie() {
+        ClientManager clientManager = newClientManager();
+        FakeBinder first = new FakeBinder();
+        FakeBinder second = new FakeBinder();
+
+        ClientRecord allowed = clientManager.addClient(10000, 1, application(first), "a");
+        ClientRecord notAllowed = clientManager.addClient(10001, 2, application(second), "b");
+        assertTrue(allowed.allowed);
+        assertFalse(notAllowed.allowed);
+        assertSame(allowed, clientManager.findClient(10000, 1));
+        assertEquals(2, clientManager.getClientCount());
+        assertEquals(1, first.getRecipientCount());
+
+        first.kill();
+        assertNull(clientManager.findClient(10000, 1));
+        assertTrue(clientManager.findClients(10000).isEmpty());
+        assertSame(notAllowed, clientManager.findClient(10001, 2));
+        assertEquals(1, clientManager.getClientCount());
+    }
+
+    @Test
+    public void clientDeadBeforeAttach() {
+        ClientManager clientManager = newClientManager();
+        FakeBinder binder = new FakeBinder();
+        binder.kill();
+
+        assertNull(clientManager.addClient(10000, 1, application(binder), "a"));
+        assertNull(clientManager.findClient(10000, 1));
+        assertEquals(0, clientManager.getClientCount());
+    }
+
+    /**
+     * Several threads attach thousands of clients while others kill them through their death recipients and
+     * readers look them up. A client is found from the moment it is attached until it dies, and the
+     * manager holds exactly the clients which are still alive at the end.
+     */
+    @Test
+    public void concurrentAttachAndDeath() throws Exception {
+        final int writers = 4;
+        final int killers = 2;
+        final int readers = 4;
+        final int clientsPerWriter = 1000;
+        // several processes per uid, so findClients has more than one record to keep right
+        final int pidsPerUid = 4;
+
+        ClientManager clientManager = newClientManager();
+        List<Client> clients = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            for (int i = 0; i < clientsPerWriter; i++) {
+                int n = w * clientsPerWriter + i;
+                clients.add(new Client(10000 + n / pidsPerUid, 1000 + n));
+            }
+        }
+
+        LinkedBlockingQueue<Client> toKill = new LinkedBlockingQueue<>();
+        Client poison = new Client(-1, -1);
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+
+        for (int w = 0; w < writers; w++) {
+            List<Client> own = clients.subList(w * clientsPerWriter, (w + 1) * clientsPerWriter);
+            long seed = w;
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                    Random random = new Random(seed);
+                    for (Client client : own) {
+                        ClientRecord record = clientManager.addClient(client.uid, client.pid, application(client.binder), "package" + client.uid);
+                        assertEquals(client.uid, record.uid);
+                        client.record = record;
+                        client.state.set(ATTACHED);
+                        // three quarters die, the rest is alive at the end
+                        if (random.nextInt(4) != 0) {
+                            toKill.add(client);
+                        }
+                    }
+                } catch (Throwable tr) {
+                    failure.compareAndSet(null, tr);
+                }
+            }, "writer " + w));
+        }
+
+        for (int k = 0; k < killers; k++) {
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                    Client client;
+                    while ((client = toKill.poll(10, TimeUnit.SECONDS)) != null && client != poison) {
+                        client.state.set(DYING);
+                        client.binder.kill();
+                        client.state.set(DEAD);
+                    }
+                } catch (Throwable tr) {
+                    failure.compareAndSet(null, tr);
+                }
+            }, "killer " + k));
+        }
+
+        for (int r = 0; r < readers; r++) {
+            long seed = 100 + r;
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                    Random random = new Random(seed);
+                    while (writing.get() || !toKill.isEmpty()) {
+                        Client client = clients.get(random.nextInt(clients.size()));
+                        int before = client.state.get();
+                        ClientRecord found = clientManager.findClient(client.uid, client.pid);
+                        boolean inList = clientManager.findClients(client.uid).contains(found);
+                        int after = client.state.get();
+
+                        if (before == ATTACHED && after == ATTACHED) {
+                            assertSame(client.record, found);
+                            assertTrue(inList);
+                        } else if (before == DEAD) {
+                            assertNull(found);
+                        }
+                    }
+                } catch (Throwable tr) {
+                    failure.compareAndSet(null, tr);
+                }
+            }, "reader " + r));
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        long startTime = System.nanoTime();
+        start.countDown();
+        for (int w = 0; w < writers; w++) {
+            threads.get(w).join();
+        }
+        for (int k = 0; k < killers; k++) {
+            toKill.add(poison);
+        }
+        for (int k = writers; k < writers + killers; k++) {
+            threads.get(k).join();
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+        writing.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        int alive = 0;
+        for (Client client : clients) {
+            ClientRecord found = clientManager.findClient(client.uid, client.pid);
+            if (client.state.get() == DEAD) {
+                assertNull(found);
+                assertEquals(0, client.binder.getRecipientCount());
+            } else {
+                assertEquals(ATTACHED, client.state.get());
+                assertSame(client.record, found);
+                assertEquals(client.uid % 2 == 0, found.allowed);
+                alive++;
+            }
+        }
+        assertEquals(alive, clientManager.getClientCount());
+        System.out.printf("%d clients attached by %d threads and %d killed by %d threads in %d ms%n",
+                clients.size(), writers, clients.size() - alive, killers, millis);
+    }
+}
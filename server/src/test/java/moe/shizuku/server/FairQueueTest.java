@@ -0,0 +1,167 @@
+package moe.shizuku.server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FairQueueTest {
+
+    /**
+     * Queues one waiter, returns once it is waiting so that waiters are tagged in the order they are started.
+     */
+    private static Thread startWaiter(FairQueue queue, int uid, int weight, List<Integer> served,
+                                      AtomicReference<Throwable> failure) throws InterruptedException {
+        int waiting = queue.getWaitingCount();
+        Thread thread = new Thread(() -> {
+            try {
+                queue.acquire(uid, weight);
+                synchronized (served) {
+                    served.add(uid);
+                }
+                queue.release();
+            } catch (Throwable tr) {
+                failure.compareAndSet(null, tr);
+            }
+        });
+        thread.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (queue.getWaitingCount() == waiting) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+        return thread;
+    }
+
+    @Test
+    public void tryAcquireRespectsPermits() {
+        FairQueue queue = new FairQueue(2);
+        assertTrue(queue.tryAcquire(10000, 1));
+        assertTrue(queue.tryAcquire(10001, 1));
+        assertFalse(queue.tryAcquire(10002, 1));
+        queue.release();
+        assertTrue(queue.tryAcquire(10002, 1));
+    }
+
+    /**
+     * A uid which queued first does not hold back a later one, and a uid with twice the weight is served
+     * twice as often while both wait.
+     */
+    @Test
+    public void servesByWeight() throws Exception {
+        FairQueue queue = new FairQueue(1);
+        assertTrue(queue.tryAcquire(1, 1));
+
+        int perUid = 10;
+        List<Integer> served = new ArrayList<>();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < perUid; i++) {
+            threads.add(startWaiter(queue, 10000, 1, served, failure));
+        }
+        for (int i = 0; i < perUid; i++) {
+            threads.add(startWaiter(queue, 10001, 2, served, failure));
+        }
+
+        queue.release();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        assertEquals(perUid * 2, served.size());
+        // tags 1, 2, 3... against 0.5, 1, 1.5..., ties go to the earlier ticket
+        assertEquals(10001, (int) served.get(0));
+        int heavy = 0;
+        for (int i = 0; i < perUid * 3 / 2; i++) {
+            if (served.get(i) == 10001) {
+                heavy++;
+            }
+        }
+        assertEquals(perUid, heavy);
+    }
+
+    @Test
+    public void interruptedWaiterLeavesQueue() throws Exception {
+        FairQueue queue = new FairQueue(1);
+        assertTrue(queue.tryAcquire(10000, 1));
+
+        AtomicReference<Throwable> thrown = new AtomicReference<>();
+        Thread thread = new Thread(() -> {
+            try {
+                queue.acquire(10001, 1);
+            } catch (Throwable tr) {
+                thrown.set(tr);
+            }
+        });
+        thread.start();
+        while (queue.getWaitingCount() == 0) {
+            Thread.sleep(1);
+        }
+        thread.interrupt();
+        thread.join();
+
+        assertTrue(thrown.get() instanceof InterruptedException);
+        assertEquals(0, queue.getWaitingCount());
+        queue.release();
+        assertTrue(queue.tryAcquire(10002, 1));
+    }
+
+    /**
+     * Cost of a permit when one is free, and of handing permits over between threads which keep the queue
+     * full.
+     */
+    @Test
+    public void acquireTiming() throws Exception {
+        FairQueue queue = new FairQueue(2);
+
+        double free = Timing.nanosPerOp(1000000, n -> {
+            long total = 0;
+            for (int i = 0; i < n; i++) {
+                total += queue.acquire(10000 + (i & 7), 2);
+                queue.release();
+            }
+            return total;
+        });
+
+        int threads = 8;
+        double handOver = Timing.nanosPerOp(20000, n -> {
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            List<Thread> list = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int uid = 10000 + t;
+                Thread thread = new Thread(() -> {
+                    try {
+                        for (int i = 0; i < n / threads; i++) {
+                            queue.acquire(uid, 1 + uid % 2);
+                            queue.release();
+                        }
+                    } catch (Throwable tr) {
+                        failure.compareAndSet(null, tr);
+                    }
+                });
+                thread.start();
+                list.add(thread);
+            }
+            for (Thread thread : list) {
+                thread.join();
+            }
+            if (failure.get() != null) {
+                throw new AssertionError(failure.get());
+            }
+            return n;
+        });
+        assertEquals(0, queue.getWaitingCount());
+
+        Timing.print("acquire and release, permit free", free);
+        Timing.print("acquire and release, " + threads + " threads on 2 permits", handOver);
+    }
+}
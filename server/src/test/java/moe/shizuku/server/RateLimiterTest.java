@@ -0,0 +1,164 @@
+package moe.shizuku.server;
+
+import android.util.SparseArray;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import moe.shizuku.server.config.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+
+    // process starts of QUOTA_DEFAULT, refilled at 10 per second
+    private static final int SPAWN_BURST = 30;
+
+    private static RateLimiter newRateLimiter(SparseArray<Integer> quotas) {
+        return new RateLimiter(true, uid -> {
+            synchronized (quotas) {
+                Integer quota = quotas.get(uid);
+                return quota != null ? quota : Config.QUOTA_DEFAULT;
+            }
+        });
+    }
+
+    private static int acquireAll(RateLimiter rateLimiter, int uid, int kind) {
+        int count = 0;
+        while (rateLimiter.tryAcquire(uid, kind)) {
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void rejectsAfterBurst() {
+        SparseArray<Integer> quotas = new SparseArray<>();
+        quotas.put(10001, Config.QUOTA_LOW);
+        RateLimiter rateLimiter = newRateLimiter(quotas);
+
+        assertEquals(SPAWN_BURST, acquireAll(rateLimiter, 10000, RateLimiter.KIND_SPAWN));
+        assertEquals(SPAWN_BURST / 4, acquireAll(rateLimiter, 10001, RateLimiter.KIND_SPAWN));
+        // the buckets of other kinds and uids are untouched
+        assertTrue(rateLimiter.tryAcquire(10000, RateLimiter.KIND_TRANSACT));
+        assertTrue(rateLimiter.tryAcquire(10002, RateLimiter.KIND_SPAWN));
+    }
+
+    @Test
+    public void unlimitedNeverRejects() {
+        SparseArray<Integer> quotas = new SparseArray<>();
+        quotas.put(10000, Config.QUOTA_UNLIMITED);
+        RateLimiter rateLimiter = newRateLimiter(quotas);
+
+        for (int i = 0; i < SPAWN_BURST * 100; i++) {
+            assertTrue(rateLimiter.tryAcquire(10000, RateLimiter.KIND_SPAWN));
+        }
+        assertEquals(8, rateLimiter.getWeight(10000));
+    }
+
+    @Test
+    public void invalidateAppliesNewQuota() {
+        SparseArray<Integer> quotas = new SparseArray<>();
+        RateLimiter rateLimiter = newRateLimiter(quotas);
+
+        assertEquals(SPAWN_BURST, acquireAll(rateLimiter, 10000, RateLimiter.KIND_SPAWN));
+
+        quotas.put(10000, Config.QUOTA_HIGH);
+        // the bucket keeps the quota it was made with
+        assertFalse(rateLimiter.tryAcquire(10000, RateLimiter.KIND_SPAWN));
+
+        rateLimiter.invalidate(10000);
+        assertEquals(SPAWN_BURST * 4, acquireAll(rateLimiter, 10000, RateLimiter.KIND_SPAWN));
+    }
+
+    @Test
+    public void disabledNeverRejects() {
+        RateLimiter rateLimiter = new RateLimiter(false, uid -> Config.QUOTA_LOW);
+        assertFalse(rateLimiter.isEnabled());
+        for (int i = 0; i < SPAWN_BURST * 100; i++) {
+            assertTrue(rateLimiter.tryAcquire(10000, RateLimiter.KIND_SPAWN));
+        }
+    }
+
+    /**
+     * Cost of the check every transaction pays, with the limiter off, on a uid with room in its bucket, on one
+     * which is rejected, and from several threads on different uids.
+     */
+    @Test
+    public void tryAcquireTiming() throws Exception {
+        SparseArray<Integer> quotas = new SparseArray<>();
+        quotas.put(10001, Config.QUOTA_UNLIMITED);
+        RateLimiter rateLimiter = newRateLimiter(quotas);
+        RateLimiter disabled = new RateLimiter(false, uid -> Config.QUOTA_DEFAULT);
+        acquireAll(rateLimiter, 10002, RateLimiter.KIND_TRANSACT);
+
+        int iterations = 1000000;
+        double off = Timing.nanosPerOp(iterations, n -> {
+            long accepted = 0;
+            for (int i = 0; i < n; i++) {
+                if (disabled.tryAcquire(10000, RateLimiter.KIND_TRANSACT)) {
+                    accepted++;
+                }
+            }
+            return accepted;
+        });
+        double unlimited = Timing.nanosPerOp(iterations, n -> {
+            long accepted = 0;
+            for (int i = 0; i < n; i++) {
+                if (rateLimiter.tryAcquire(10001, RateLimiter.KIND_TRANSACT)) {
+                    accepted++;
+                }
+            }
+            return accepted;
+        });
+        double rejected = Timing.nanosPerOp(iterations, n -> {
+            long accepted = 0;
+            for (int i = 0; i < n; i++) {
+                if (rateLimiter.tryAcquire(10002, RateLimiter.KIND_TRANSACT)) {
+                    accepted++;
+                }
+            }
+            return accepted;
+        });
+
+        int threads = 4;
+        for (int t = 0; t < threads; t++) {
+            quotas.put(20000 + t, Config.QUOTA_UNLIMITED);
+        }
+        double contended = Timing.nanosPerOp(iterations, n -> {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> list = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int uid = 20000 + t;
+                Thread thread = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < n / threads; i++) {
+                        rateLimiter.tryAcquire(uid, RateLimiter.KIND_TRANSACT);
+                    }
+                });
+                thread.start();
+                list.add(thread);
+            }
+            start.countDown();
+            for (Thread thread : list) {
+                thread.join(TimeUnit.SECONDS.toMillis(30));
+            }
+            return n;
+        });
+
+        Timing.print("tryAcquire, disabled", off);
+        Timing.print("tryAcquire, unlimited quota", unlimited);
+        Timing.print("tryAcquire, rejected", rejected);
+        Timing.print("tryAcquire, " + threads + " threads on their own uids", contended);
+    }
+}
@@ -0,0 +1,46 @@
+package moe.shizuku.server;
+
+import java.util.Locale;
+
+/**
+ * Rough timings for the benchmark tests, printed with the test output.
+ * <p>
+ * Each body runs a few warm-up rounds first and the fastest of the measured rounds is reported. That is
+ * stable enough to compare two approaches on one machine, but absolute numbers say little about a device.
+ */
+public class Timing {
+
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 5;
+
+    public interface Body {
+
+        /**
+         * @return anything computed from the work, so that it can't be optimized away
+         */
+        long run(int iterations) throws Exception;
+    }
+
+    // results of the bodies end up here
+    public static volatile long sink;
+
+    /**
+     * @return nanoseconds per iteration of the fastest round
+     */
+    public static double nanosPerOp(int iterations, Body body) throws Exception {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            sink += body.run(iterations);
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            sink += body.run(iterations);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return (double) best / iterations;
+    }
+
+    public static void print(String name, double nanosPerOp) {
+        System.out.println(String.format(Locale.ENGLISH, "%s: %.1f ns/op", name, nanosPerOp));
+    }
+}
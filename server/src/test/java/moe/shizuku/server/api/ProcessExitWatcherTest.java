@@ -0,0 +1,108 @@
+package moe.shizuku.server.api;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ProcessExitWatcherTest {
+
+    // median wake-up latency allowed, a 20 ms poll would average 10 ms
+    private static final long MAX_MEDIAN_LATENCY_NANOS = TimeUnit.MILLISECONDS.toNanos(3);
+
+    private static Process startWaitingForStdin() throws IOException {
+        // exits as soon as its stdin is closed
+        return new ProcessBuilder("sh", "-c", "read x").start();
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    @Test
+    public void reportsExitValue() throws Exception {
+        Process process = new ProcessBuilder("sh", "-c", "exit 3").start();
+        AtomicInteger exitValue = new AtomicInteger(-1);
+        CountDownLatch exited = new CountDownLatch(1);
+        ProcessExitWatcher.watch(process, () -> {
+            exitValue.set(process.exitValue());
+            exited.countDown();
+        });
+
+        assertTrue(exited.await(5, TimeUnit.SECONDS));
+        assertEquals(3, exitValue.get());
+    }
+
+    @Test
+    public void wakesRightAfterExit() throws Exception {
+        int rounds = 30;
+        long[] latencies = new long[rounds];
+        for (int i = 0; i < rounds; i++) {
+            Process process = startWaitingForStdin();
+            AtomicLong exitTime = new AtomicLong();
+            CountDownLatch exited = new CountDownLatch(1);
+            ProcessExitWatcher.watch(process, () -> {
+                exitTime.set(System.nanoTime());
+                exited.countDown();
+            });
+
+            // let the waiter park first
+            Thread.sleep(10);
+            long start = System.nanoTime();
+            process.getOutputStream().close();
+            assertTrue(exited.await(5, TimeUnit.SECONDS));
+            latencies[i] = exitTime.get() - start;
+        }
+
+        long median = median(latencies);
+        System.out.printf("exit wake-up latency: median %.2f ms, max %.2f ms%n",
+                median / 1e6, Arrays.stream(latencies).max().getAsLong() / 1e6);
+        assertTrue("median latency " + median / 1e6 + " ms", median < MAX_MEDIAN_LATENCY_NANOS);
+    }
+
+    @Test
+    public void wakesManyProcessesTogether() throws Exception {
+        int count = 50;
+        List<Process> processes = new ArrayList<>(count);
+        long[] exitTimes = new long[count];
+        CountDownLatch exited = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            Process process = startWaitingForStdin();
+            processes.add(process);
+            int index = i;
+            ProcessExitWatcher.watch(process, () -> {
+                exitTimes[index] = System.nanoTime();
+                exited.countDown();
+            });
+        }
+        // waiters of earlier tests may still be returning to the pool
+        assertTrue(ProcessExitWatcher.getWatchedCount() >= count);
+
+        long[] closeTimes = new long[count];
+        for (int i = 0; i < count; i++) {
+            closeTimes[i] = System.nanoTime();
+            processes.get(i).getOutputStream().close();
+        }
+        assertTrue(exited.await(10, TimeUnit.SECONDS));
+
+        long[] latencies = new long[count];
+        for (int i = 0; i < count; i++) {
+            latencies[i] = exitTimes[i] - closeTimes[i];
+        }
+        long median = median(latencies);
+        System.out.printf("exit wake-up latency of %d processes: median %.2f ms%n", count, median / 1e6);
+        // includes the shells being scheduled to exit all at once, only catches waiters left behind
+        assertTrue("median latency " + median / 1e6 + " ms", median < MAX_MEDIAN_LATENCY_NANOS * 10);
+    }
+}
@@ -0,0 +1,202 @@
+package moe.shizuku.server.api;
+
+import android.os.IBinder;
+import android.os.IInterface;
+
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SystemServiceBinderTest {
+
+    /**
+     * A binder of system_server, {@link #kill()} runs its death recipients like the binder driver does.
+     */
+    private static class FakeBinder implements InvocationHandler {
+
+        final IBinder binder = (IBinder) Proxy.newProxyInstance(IBinder.class.getClassLoader(),
+                new Class<?>[]{IBinder.class}, this);
+        final AtomicInteger links = new AtomicInteger();
+        private final List<IBinder.DeathRecipient> recipients = new ArrayList<>();
+        private boolean dead;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "linkToDeath":
+                    links.incrementAndGet();
+                    synchronized (this) {
+                        recipients.add((IBinder.DeathRecipient) args[0]);
+                    }
+                    return null;
+                case "isBinderAlive":
+                case "pingBinder":
+                    synchronized (this) {
+                        return !dead;
+                    }
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        }
+
+        void kill() {
+            List<IBinder.DeathRecipient> toNotify;
+            synchronized (this) {
+                dead = true;
+                toNotify = new ArrayList<>(recipients);
+                recipients.clear();
+            }
+            for (IBinder.DeathRecipient recipient : toNotify) {
+                recipient.binderDied();
+            }
+        }
+    }
+
+    /**
+     * Service manager with one service, which is missing while {@link #service} is null.
+     */
+    private static class FakeServiceManager {
+
+        final AtomicInteger lookups = new AtomicInteger();
+        final AtomicReference<FakeBinder> service = new AtomicReference<>();
+
+        IBinder getService(String name) {
+            lookups.incrementAndGet();
+            // a lookup is a binder call, give other threads time to pile up behind it
+            try {
+                Thread.sleep(2);
+            } catch (InterruptedException ignored) {
+            }
+            FakeBinder binder = service.get();
+            return binder != null ? binder.binder : null;
+        }
+    }
+
+    private static SystemServiceBinder<IInterface> newBinder(FakeServiceManager serviceManager) {
+        return new SystemServiceBinder<IInterface>("test", serviceManager::getService, binder -> () -> binder);
+    }
+
+    /**
+     * Runs the action on several threads released at the same time.
+     */
+    private static void runConcurrently(int threads, Runnable action) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> list = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    action.run();
+                } catch (Throwable tr) {
+                    failure.compareAndSet(null, tr);
+                }
+            });
+            thread.start();
+            list.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : list) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+
+    @Test
+    public void resolvesOnceForConcurrentCallers() throws Exception {
+        FakeServiceManager serviceManager = new FakeServiceManager();
+        FakeBinder service = new FakeBinder();
+        serviceManager.service.set(service);
+        SystemServiceBinder<IInterface> binder = newBinder(serviceManager);
+
+        runConcurrently(32, () -> {
+            for (int i = 0; i < 100; i++) {
+                assertTrue(binder.pingBinder());
+            }
+        });
+
+        assertEquals(1, serviceManager.lookups.get());
+        assertEquals(1, service.links.get());
+        assertEquals(1, binder.getResolutions().get());
+    }
+
+    @Test
+    public void resolvesOnceAfterDeath() throws Exception {
+        FakeServiceManager serviceManager = new FakeServiceManager();
+        FakeBinder first = new FakeBinder();
+        serviceManager.service.set(first);
+        SystemServiceBinder<IInterface> binder = newBinder(serviceManager);
+        assertTrue(binder.pingBinder());
+
+        FakeBinder second = new FakeBinder();
+        serviceManager.service.set(second);
+        first.kill();
+
+        // the first lookup after a death is not delayed
+        runConcurrently(32, () -> {
+            for (int i = 0; i < 100; i++) {
+                assertTrue(binder.pingBinder());
+            }
+        });
+
+        assertEquals(2, serviceManager.lookups.get());
+        assertEquals(1, first.links.get());
+        assertEquals(1, second.links.get());
+        assertEquals(1, binder.getDeaths().get());
+    }
+
+    @Test
+    public void backsOffWhileServiceIsMissing() throws Exception {
+        FakeServiceManager serviceManager = new FakeServiceManager();
+        FakeBinder first = new FakeBinder();
+        serviceManager.service.set(first);
+        SystemServiceBinder<IInterface> binder = newBinder(serviceManager);
+        assertTrue(binder.pingBinder());
+
+        // system_server restarting
+        serviceManager.service.set(null);
+        first.kill();
+        int lookupsBefore = serviceManager.lookups.get();
+
+        long duration = 400;
+        long end = System.nanoTime() + duration * 1000000;
+        runConcurrently(8, () -> {
+            while (System.nanoTime() < end) {
+                assertFalse(binder.pingBinder());
+            }
+        });
+
+        // lookups at 0, 50, 150 and 350 ms, one more for scheduling slack
+        int lookups = serviceManager.lookups.get() - lookupsBefore;
+        System.out.printf("lookups while missing for %d ms: %d%n", duration, lookups);
+        assertTrue("lookups " + lookups, lookups >= 2 && lookups <= 5);
+        assertEquals(lookups, binder.getFailedResolutions().get());
+
+        FakeBinder second = new FakeBinder();
+        serviceManager.service.set(second);
+        // found once the current delay, at most MAX_BACKOFF, has passed
+        long deadline = System.nanoTime() + 3000L * 1000000;
+        while (!binder.pingBinder()) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+        assertEquals(1, second.links.get());
+    }
+}
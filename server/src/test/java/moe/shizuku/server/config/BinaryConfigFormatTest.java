@@ -0,0 +1,119 @@
+package moe.shizuku.server.config;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.junit.Test;
+
+import moe.shizuku.server.Timing;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class BinaryConfigFormatTest {
+
+    @Test
+    public void writeAndRead() throws IOException {
+        List<Config.PackageEntry> packages = new ArrayList<>();
+        packages.add(new Config.PackageEntry(10001, Config.FLAG_ALLOWED));
+        packages.add(new Config.PackageEntry(10002, Config.FLAG_DENIED | Config.QUOTA_LOW));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryConfigFormat.write(out, new Config(packages));
+
+        Config config = BinaryConfigFormat.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(Config.LATEST_VERSION, config.version);
+        assertEquals(2, config.packages.size());
+        assertEquals(10002, config.packages.get(1).uid);
+        assertEquals(Config.FLAG_DENIED | Config.QUOTA_LOW, config.packages.get(1).flags);
+    }
+
+    @Test(expected = EOFException.class)
+    public void hugeCountDoesNotPreallocate() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0x535a4b43);
+        out.writeInt(Config.LATEST_VERSION);
+        out.writeInt(Integer.MAX_VALUE);
+        out.writeInt(10001);
+        out.writeInt(Config.FLAG_ALLOWED);
+
+        BinaryConfigFormat.read(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    /**
+     * Loading and saving the config in the binary form against the JSON form ConfigManager used before, with
+     * Gson set up the same way.
+     */
+    @Test
+    public void formatTiming() throws Exception {
+        Gson gsonIn = new GsonBuilder().create();
+        Gson gsonOut = new GsonBuilder().setVersion(Config.LATEST_VERSION).create();
+
+        for (int size : new int[]{50, 500, 5000}) {
+            List<Config.PackageEntry> packages = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                packages.add(new Config.PackageEntry(10000 + i, i % 3 == 0 ? Config.FLAG_ALLOWED : Config.FLAG_DENIED));
+            }
+            Config config = new Config(packages);
+
+            ByteArrayOutputStream binary = new ByteArrayOutputStream();
+            BinaryConfigFormat.write(binary, config);
+            byte[] binaryBytes = binary.toByteArray();
+            byte[] jsonBytes = gsonOut.toJson(config).getBytes("UTF-8");
+
+            int iterations = 200000 / size;
+            double binaryRead = Timing.nanosPerOp(iterations, n -> {
+                long total = 0;
+                for (int i = 0; i < n; i++) {
+                    total += BinaryConfigFormat.read(new ByteArrayInputStream(binaryBytes)).packages.size();
+                }
+                return total;
+            });
+            double jsonRead = Timing.nanosPerOp(iterations, n -> {
+                long total = 0;
+                for (int i = 0; i < n; i++) {
+                    Config read = gsonIn.fromJson(new InputStreamReader(new ByteArrayInputStream(jsonBytes)), Config.class);
+                    total += read.packages.size();
+                }
+                return total;
+            });
+            double binaryWrite = Timing.nanosPerOp(iterations, n -> {
+                long total = 0;
+                for (int i = 0; i < n; i++) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    BinaryConfigFormat.write(out, config);
+                    total += out.size();
+                }
+                return total;
+            });
+            double jsonWrite = Timing.nanosPerOp(iterations, n -> {
+                long total = 0;
+                for (int i = 0; i < n; i++) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    Writer writer = new OutputStreamWriter(out, "UTF-8");
+                    writer.write(gsonOut.toJson(config));
+                    writer.flush();
+                    total += out.size();
+                }
+                return total;
+            });
+
+            System.out.printf("%d packages: binary %d bytes, json %d bytes%n", size, binaryBytes.length, jsonBytes.length);
+            Timing.print("read, " + size + " packages, binary", binaryRead);
+            Timing.print("read, " + size + " packages, json", jsonRead);
+            Timing.print("write, " + size + " packages, binary", binaryWrite);
+            Timing.print("write, " + size + " packages, json", jsonWrite);
+        }
+    }
+}
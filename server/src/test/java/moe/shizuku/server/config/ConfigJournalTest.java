@@ -0,0 +1,245 @@
+package moe.shizuku.server.config;
+
+import android.util.SparseArray;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import moe.shizuku.server.Timing;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConfigJournalTest {
+
+    private static final int RECORD_SIZE = 16;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private File rotatedFile;
+    private ConfigJournal journal;
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), "journal");
+        rotatedFile = new File(folder.getRoot(), "journal.1");
+        journal = new ConfigJournal(file);
+    }
+
+    private static SparseArray<Config.PackageEntry> replay(File file) {
+        SparseArray<Config.PackageEntry> entries = new SparseArray<>();
+        new ConfigJournal(file).replay(entries);
+        return entries;
+    }
+
+    private static int flags(SparseArray<Config.PackageEntry> entries, int uid) {
+        return entries.get(uid).flags;
+    }
+
+    @Test
+    public void replayAppliesRecordsInOrder() throws IOException {
+        journal.appendUpdate(10001, 1);
+        journal.appendUpdate(10002, 2);
+        journal.appendUpdate(10001, 3);
+        journal.appendRemove(10002);
+
+        SparseArray<Config.PackageEntry> entries = new SparseArray<>();
+        assertEquals(4, new ConfigJournal(file).replay(entries));
+        assertEquals(1, entries.size());
+        assertEquals(3, flags(entries, 10001));
+        assertNull(entries.get(10002));
+    }
+
+    @Test
+    public void replayUpdatesExistingEntries() throws IOException {
+        journal.appendUpdate(10001, 4);
+
+        SparseArray<Config.PackageEntry> entries = new SparseArray<>();
+        Config.PackageEntry entry = new Config.PackageEntry(10001, 2);
+        entries.put(10001, entry);
+        new ConfigJournal(file).replay(entries);
+        assertEquals(4, entry.flags);
+    }
+
+    @Test
+    public void truncatedRecordIsIgnored() throws IOException {
+        journal.appendUpdate(10001, 1);
+        journal.appendUpdate(10002, 2);
+        journal.appendUpdate(10003, 3);
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(RECORD_SIZE * 3 - 5);
+        }
+
+        SparseArray<Config.PackageEntry> entries = replay(file);
+        assertEquals(2, entries.size());
+        assertNull(entries.get(10003));
+    }
+
+    @Test
+    public void tornRecordEndsReplay() throws IOException {
+        journal.appendUpdate(10001, 1);
+        journal.appendUpdate(10002, 2);
+
+        // the last record was only partly written over old bytes
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(RECORD_SIZE + 4);
+            raf.write(new byte[]{0, 0, 0, 0});
+        }
+
+        SparseArray<Config.PackageEntry> entries = replay(file);
+        assertEquals(1, entries.size());
+        assertEquals(1, flags(entries, 10001));
+    }
+
+    @Test
+    public void crcMismatchIgnoresTheRest() throws IOException {
+        journal.appendUpdate(10001, 1);
+        journal.appendUpdate(10002, 2);
+        journal.appendUpdate(10003, 3);
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(RECORD_SIZE + 11);
+            int b = raf.read();
+            raf.seek(RECORD_SIZE + 11);
+            raf.write(b ^ 0x1);
+        }
+
+        SparseArray<Config.PackageEntry> entries = replay(file);
+        assertEquals(1, entries.size());
+        assertEquals(1, flags(entries, 10001));
+    }
+
+    @Test
+    public void replayAfterRotate() throws IOException {
+        journal.appendUpdate(10001, 1);
+        journal.appendUpdate(10002, 2);
+        journal.rotate();
+        assertTrue(journal.hasRotated());
+        assertFalse(file.exists());
+        assertEquals(0, journal.getRecordCount());
+
+        journal.appendUpdate(10001, 3);
+
+        // the moved journal is applied before the live one
+        SparseArray<Config.PackageEntry> entries = replay(file);
+        assertEquals(2, entries.size());
+        assertEquals(3, flags(entries, 10001));
+        assertEquals(2, flags(entries, 10002));
+
+        journal.deleteRotated();
+        assertFalse(rotatedFile.exists());
+
+        entries = replay(file);
+        assertEquals(1, entries.size());
+        assertEquals(3, flags(entries, 10001));
+    }
+
+    @Test
+    public void rotateAgainKeepsUnfinishedCompaction() throws IOException {
+        journal.appendUpdate(10001, 1);
+        journal.rotate();
+        journal.appendUpdate(10001, 2);
+        journal.appendUpdate(10002, 3);
+
+        // the previous compaction did not delete the moved journal
+        journal.rotate();
+        assertFalse(file.exists());
+
+        SparseArray<Config.PackageEntry> entries = replay(file);
+        assertEquals(2, entries.size());
+        assertEquals(2, flags(entries, 10001));
+        assertEquals(3, flags(entries, 10002));
+    }
+
+    @Test
+    public void rotateDropsTornTailOfMovedJournal() throws IOException {
+        journal.appendUpdate(10001, 1);
+        journal.rotate();
+
+        try (FileOutputStream out = new FileOutputStream(rotatedFile, true)) {
+            out.write(new byte[]{1, 2, 3, 4, 5});
+        }
+
+        journal.appendUpdate(10002, 2);
+        journal.rotate();
+
+        assertEquals(RECORD_SIZE * 2, rotatedFile.length());
+        SparseArray<Config.PackageEntry> entries = replay(file);
+        assertEquals(2, entries.size());
+        assertEquals(2, flags(entries, 10002));
+    }
+
+    @Test
+    public void rotateWithoutJournal() throws IOException {
+        journal.rotate();
+        assertFalse(journal.hasRotated());
+        assertEquals(0, replay(file).size());
+    }
+
+    /**
+     * Saving one change by appending a record against rewriting and syncing the whole snapshot the way the
+     * AtomicFile save does, and replaying a journal of the size that triggers compaction.
+     */
+    @Test
+    public void appendTiming() throws Exception {
+        double append = Timing.nanosPerOp(200, n -> {
+            for (int i = 0; i < n; i++) {
+                journal.appendUpdate(10000 + i, Config.FLAG_ALLOWED);
+            }
+            journal.rotate();
+            journal.deleteRotated();
+            return n;
+        });
+        Timing.print("save one change, journal append", append);
+
+        for (int size : new int[]{50, 500, 5000}) {
+            List<Config.PackageEntry> packages = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                packages.add(new Config.PackageEntry(10000 + i, Config.FLAG_ALLOWED));
+            }
+            Config config = new Config(packages);
+            File snapshot = new File(folder.getRoot(), "snapshot");
+            File newSnapshot = new File(folder.getRoot(), "snapshot.new");
+
+            double rewrite = Timing.nanosPerOp(50, n -> {
+                for (int i = 0; i < n; i++) {
+                    try (FileOutputStream out = new FileOutputStream(newSnapshot)) {
+                        BinaryConfigFormat.write(out, config);
+                        out.getFD().sync();
+                    }
+                    assertTrue(newSnapshot.renameTo(snapshot));
+                }
+                return snapshot.length();
+            });
+            Timing.print("save one change, rewrite of " + size + " packages", rewrite);
+        }
+
+        // ConfigManager compacts at 512 records
+        int records = 512;
+        for (int i = 0; i < records; i++) {
+            journal.appendUpdate(10000 + i % 100, i);
+        }
+        double replay = Timing.nanosPerOp(20, n -> {
+            long total = 0;
+            for (int i = 0; i < n; i++) {
+                total += replay(file).size();
+            }
+            return total;
+        });
+        Timing.print("replay " + records + " records", replay);
+    }
+}
@@ -0,0 +1,130 @@
+package moe.shizuku.server.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import moe.shizuku.server.Timing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void emptyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMean());
+        assertEquals(0, histogram.getPercentile(99));
+    }
+
+    /**
+     * Durations spread over several powers of two, a reported percentile is never below the real one and at
+     * most 1/8 above it.
+     */
+    @Test
+    public void percentilesWithinBucketError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Random random = new Random(1);
+        long[] values = new long[100000];
+        long sum = 0;
+        for (int i = 0; i < values.length; i++) {
+            // log-uniform between 1us and about 1s
+            values[i] = (long) Math.exp(random.nextDouble() * Math.log(1000000));
+            histogram.record(values[i]);
+            sum += values[i];
+        }
+        Arrays.sort(values);
+
+        assertEquals(values.length, histogram.getCount());
+        assertEquals(sum / values.length, histogram.getMean());
+        assertEquals(values[values.length - 1], histogram.getMax());
+        for (double percentile : new double[]{1, 10, 50, 90, 99, 99.9, 100}) {
+            long exact = values[(int) Math.ceil(values.length * percentile / 100) - 1];
+            long reported = histogram.getPercentile(percentile);
+            assertTrue(percentile + ": " + reported + " < " + exact, reported >= exact);
+            assertTrue(percentile + ": " + reported + " > " + exact, reported <= exact + exact / 8);
+        }
+    }
+
+    @Test
+    public void concurrentRecordsAreCounted() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        int threads = 4;
+        int perThread = 100000;
+        List<Thread> list = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            long value = 10 + t;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    histogram.record(value);
+                }
+            });
+            thread.start();
+            list.add(thread);
+        }
+        for (Thread thread : list) {
+            thread.join();
+        }
+
+        assertEquals(threads * perThread, histogram.getCount());
+        assertEquals(10 + threads - 1, histogram.getMax());
+        assertEquals(10 + threads - 1, histogram.getPercentile(100));
+    }
+
+    /**
+     * Cost added to every binder call, from one thread and from several recording into the same histogram,
+     * and of computing a percentile at dump time.
+     */
+    @Test
+    public void recordTiming() throws Exception {
+        Random random = new Random(2);
+        long[] values = new long[1024];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) Math.exp(random.nextDouble() * Math.log(100000));
+        }
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        double single = Timing.nanosPerOp(1000000, n -> {
+            for (int i = 0; i < n; i++) {
+                histogram.record(values[i & 1023]);
+            }
+            return histogram.getCount();
+        });
+
+        int threads = 4;
+        double shared = Timing.nanosPerOp(1000000, n -> {
+            List<Thread> list = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int offset = t * 256;
+                Thread thread = new Thread(() -> {
+                    for (int i = 0; i < n / threads; i++) {
+                        histogram.record(values[(offset + i) & 1023]);
+                    }
+                });
+                thread.start();
+                list.add(thread);
+            }
+            for (Thread thread : list) {
+                thread.join();
+            }
+            return histogram.getCount();
+        });
+
+        double percentile = Timing.nanosPerOp(10000, n -> {
+            long total = 0;
+            for (int i = 0; i < n; i++) {
+                total += histogram.getPercentile(99);
+            }
+            return total;
+        });
+
+        Timing.print("record, 1 thread", single);
+        Timing.print("record, " + threads + " threads on one histogram", shared);
+        Timing.print("getPercentile", percentile);
+    }
+}
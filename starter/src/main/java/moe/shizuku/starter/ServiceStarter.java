@@ -6,9 +6,14 @@ import android.ddm.DdmHandleAppName;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.Process;
 import android.os.UserHandle;
 import android.util.Log;
 
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
 import hidden.HiddenApiBridge;
 import moe.shizuku.api.BinderContainer;
 import moe.shizuku.starter.api.SystemService;
@@ -21,7 +26,16 @@ public class ServiceStarter {
 
     private static final String EXTRA_BINDER = "moe.shizuku.privileged.api.intent.extra.BINDER";
 
+    private static final int MAX_STANDBY_ARGS = 64;
+
     public static void main(String[] args) {
+        for (String arg : args) {
+            if (arg.equals("--standby")) {
+                args = waitForService();
+                break;
+            }
+        }
+
         String name = null;
         String token = null;
         String pkg = null;
@@ -29,7 +43,9 @@ public class ServiceStarter {
         int uid = -1;
 
         for (String arg : args) {
-            if (arg.startsWith("--debug-name=")) {
+            if (arg.startsWith("--nice-name=")) {
+                setArgV0(arg.substring(12));
+            } else if (arg.startsWith("--debug-name=")) {
                 name = arg.substring(13);
             } else if (arg.startsWith("--token=")) {
                 token = arg.substring(8);
@@ -47,12 +63,8 @@ public class ServiceStarter {
 
         Log.i(TAG, String.format("starting service %s/%s...", pkg, cls));
 
-        if (Looper.getMainLooper() == null) {
-            Looper.prepareMainLooper();
-        }
-
         IBinder service = null;
-        Context systemContext = HiddenApiBridge.getSystemContext();
+        Context systemContext = prepare();
 
         DdmHandleAppName.setAppName(name != null ? name : "shizuku_user_service", 0);
 
@@ -77,6 +89,53 @@ public class ServiceStarter {
         Log.i(TAG, String.format("service %s/%s exited", pkg, cls));
     }
 
+    private static Context prepare() {
+        if (Looper.getMainLooper() == null) {
+            Looper.prepareMainLooper();
+        }
+        return HiddenApiBridge.getSystemContext();
+    }
+
+    /**
+     * Standby mode: the server keeps one such process around. It does the service independent work up front
+     * and then waits for the server to write the arguments of the actual service to stdin, as an int count
+     * followed by each argument in modified UTF-8 (DataOutputStream.writeUTF).
+     */
+    private static String[] waitForService() {
+        prepare();
+        SystemService.warmUp();
+
+        try {
+            DataInputStream is = new DataInputStream(System.in);
+            int count = is.readInt();
+            if (count < 0 || count > MAX_STANDBY_ARGS) {
+                Log.w(TAG, "bad service argument count " + count);
+                System.exit(1);
+            }
+            String[] args = new String[count];
+            for (int i = 0; i < count; i++) {
+                args[i] = is.readUTF();
+            }
+            return args;
+        } catch (EOFException e) {
+            // the server is gone, or it does not need us any more
+            System.exit(0);
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "read service arguments", e);
+            System.exit(1);
+            return null;
+        }
+    }
+
+    private static void setArgV0(String name) {
+        try {
+            Process.class.getMethod("setArgV0", String.class).invoke(null, name);
+        } catch (Throwable tr) {
+            Log.w(TAG, "setArgV0", tr);
+        }
+    }
+
     private static boolean sendBinder(IBinder binder, String token) {
         String packageName = "moe.shizuku.privileged.api";
         String name = packageName + ".shizuku";
@@ -10,6 +10,15 @@ import hidden.HiddenApiBridgeV23
 
 object SystemService {
 
+    /**
+     * Looks up the system services ahead of time, for processes which are started before they are needed.
+     */
+    @JvmStatic
+    fun warmUp() {
+        SystemServiceProvider.activityManager
+        SystemServiceProvider.packageManager
+    }
+
     @JvmStatic
     @Throws(RemoteException::class)
     fun getPackageInfo(packageName: String?, flags: Int, userId: Int): PackageInfo? {